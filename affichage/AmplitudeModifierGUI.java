@@ -9,35 +9,51 @@ import java.awt.event.WindowEvent;
 import javax.swing.BorderFactory;
 import javax.swing.JButton;
 import javax.swing.JCheckBox;
+import javax.swing.JComboBox;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JMenu;
 import javax.swing.JMenuBar;
 import javax.swing.JMenuItem;
 import javax.swing.JPanel;
-import javax.swing.JScrollPane;
 import javax.swing.JSlider;
+import javax.swing.JSpinner;
 import javax.swing.JTabbedPane;
+import javax.swing.SpinnerNumberModel;
+import javax.swing.Timer;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
 
 import traitement.TreatAudio;
 import entite.AudioData;
+import entite.PeakPyramid;
+import entite.PlaybackMonitor;
 
 public class AmplitudeModifierGUI extends JFrame implements AudioData.AudioDataListener {
     private static final long serialVersionUID = 1L;
+    private static final int PLAYBACK_REFRESH_MILLIS = 20;
     
     private final TreatAudio controller;
     
     private JSlider amplitudeSlider;
     private JLabel amplitudeLabel;
+    private JSpinner loudnessTargetSpinner;
+    private JButton normalizeButton;
     private WaveformCanvas waveformCanvas;
+    private LevelMeter levelMeter;
     private JButton loadButton;
     private JButton saveButton;
     private JButton playButton;
     private JButton stopButton;
+    private JCheckBox selectionOnlyCheckbox;
     private JLabel statusLabel;
     
+    // Sampled by playbackTimer into the reused level arrays while playing.
+    private final Timer playbackTimer = new Timer(PLAYBACK_REFRESH_MILLIS, e -> refreshPlayback());
+    private PlaybackMonitor playbackMonitor;
+    private float[] playbackPeak = new float[0];
+    private float[] playbackRms = new float[0];
+    
     private JCheckBox antiDistortionCheckbox;
     private JSlider thresholdSlider;
     private JSlider ratioSlider;
@@ -45,6 +61,7 @@ public class AmplitudeModifierGUI extends JFrame implements AudioData.AudioDataL
     private JLabel thresholdLabel;
     private JLabel ratioLabel;
     private JLabel makeupGainLabel;
+    private JComboBox<String> oversamplingCombo;
     
     private JCheckBox noiseReductionCheckbox;
     private JSlider noiseReductionAmountSlider;
@@ -100,7 +117,40 @@ public class AmplitudeModifierGUI extends JFrame implements AudioData.AudioDataL
         fileMenu.addSeparator();
         fileMenu.add(exitItem);
         
+        JMenu editMenu = new JMenu("Edit");
+        JMenuItem undoItem = new JMenuItem("Undo");
+        undoItem.addActionListener(e -> controller.undo());
+        
+        JMenuItem redoItem = new JMenuItem("Redo");
+        redoItem.addActionListener(e -> controller.redo());
+        
+        JMenuItem cutItem = new JMenuItem("Cut");
+        cutItem.addActionListener(e -> controller.cut());
+        
+        JMenuItem copyItem = new JMenuItem("Copy");
+        copyItem.addActionListener(e -> controller.copy());
+        
+        JMenuItem pasteItem = new JMenuItem("Paste");
+        pasteItem.addActionListener(e -> controller.paste());
+        
+        JMenuItem trimItem = new JMenuItem("Trim to Selection");
+        trimItem.addActionListener(e -> controller.trimToSelection());
+        
+        JMenuItem silenceItem = new JMenuItem("Insert Silence...");
+        silenceItem.addActionListener(e -> controller.insertSilence());
+        
+        editMenu.add(undoItem);
+        editMenu.add(redoItem);
+        editMenu.addSeparator();
+        editMenu.add(cutItem);
+        editMenu.add(copyItem);
+        editMenu.add(pasteItem);
+        editMenu.addSeparator();
+        editMenu.add(trimItem);
+        editMenu.add(silenceItem);
+        
         menuBar.add(fileMenu);
+        menuBar.add(editMenu);
         setJMenuBar(menuBar);
     }
     
@@ -128,8 +178,21 @@ public class AmplitudeModifierGUI extends JFrame implements AudioData.AudioDataL
             }
         });
         
+        JPanel normalizePanel = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+        loudnessTargetSpinner = new JSpinner(new SpinnerNumberModel(-16.0, -40.0, -5.0, 1.0));
+        normalizeButton = new JButton("Normalize");
+        normalizeButton.addActionListener(e -> 
+            controller.normalizeLoudness((Double) loudnessTargetSpinner.getValue()));
+        normalizePanel.add(new JLabel("Target (LUFS):"));
+        normalizePanel.add(loudnessTargetSpinner);
+        normalizePanel.add(normalizeButton);
+        
+        JPanel amplitudeBottom = new JPanel(new BorderLayout());
+        amplitudeBottom.add(amplitudeLabel, BorderLayout.CENTER);
+        amplitudeBottom.add(normalizePanel, BorderLayout.EAST);
+        
         sliderPanel.add(amplitudeSlider, BorderLayout.CENTER);
-        sliderPanel.add(amplitudeLabel, BorderLayout.SOUTH);
+        sliderPanel.add(amplitudeBottom, BorderLayout.SOUTH);
         
         JTabbedPane tabbedPane = new JTabbedPane();
         
@@ -158,6 +221,11 @@ public class AmplitudeModifierGUI extends JFrame implements AudioData.AudioDataL
         buttonPanel.add(playButton);
         buttonPanel.add(stopButton);
         
+        selectionOnlyCheckbox = new JCheckBox("Process selection only");
+        selectionOnlyCheckbox.addActionListener(e -> 
+            controller.setProcessSelectionOnly(selectionOnlyCheckbox.isSelected()));
+        buttonPanel.add(selectionOnlyCheckbox);
+        
         JPanel topPanel = new JPanel(new BorderLayout());
         topPanel.add(sliderPanel, BorderLayout.NORTH);
         topPanel.add(tabbedPane, BorderLayout.CENTER);
@@ -176,7 +244,7 @@ public class AmplitudeModifierGUI extends JFrame implements AudioData.AudioDataL
         antiDistortionCheckbox.addActionListener(e -> 
             controller.setAntiDistortionEnabled(antiDistortionCheckbox.isSelected()));
         
-        JPanel antiDistortionControls = new JPanel(new GridLayout(4, 2, 5, 5));
+        JPanel antiDistortionControls = new JPanel(new GridLayout(5, 2, 5, 5));
         
         thresholdSlider = new JSlider(JSlider.HORIZONTAL, 1, 100, 70);
         thresholdSlider.setMajorTickSpacing(25);
@@ -203,6 +271,11 @@ public class AmplitudeModifierGUI extends JFrame implements AudioData.AudioDataL
         
         JLabel tanhLabel = new JLabel("Saturation plus douce et musicale", JLabel.LEFT);
         
+        JLabel oversamplingLabel = new JLabel("Oversampling (true peak):", JLabel.LEFT);
+        oversamplingCombo = new JComboBox<>(new String[] { "1x (fastest)", "2x", "4x (best)" });
+        oversamplingCombo.addActionListener(e -> 
+            controller.setOversamplingFactor(1 << oversamplingCombo.getSelectedIndex()));
+        
         ChangeListener antiDistortionChangeListener = new ChangeListener() {
             @Override
             public void stateChanged(ChangeEvent e) {
@@ -235,6 +308,8 @@ public class AmplitudeModifierGUI extends JFrame implements AudioData.AudioDataL
         antiDistortionControls.add(makeupGainSlider);
         antiDistortionControls.add(tanhCheckbox);
         antiDistortionControls.add(tanhLabel);
+        antiDistortionControls.add(oversamplingLabel);
+        antiDistortionControls.add(oversamplingCombo);
         
         JPanel antiDistortionTop = new JPanel(new BorderLayout());
         antiDistortionTop.add(antiDistortionCheckbox, BorderLayout.NORTH);
@@ -347,11 +422,15 @@ public class AmplitudeModifierGUI extends JFrame implements AudioData.AudioDataL
         waveformPanel.setBorder(BorderFactory.createTitledBorder("Waveform"));
         waveformPanel.add(waveformCanvas, BorderLayout.CENTER);
         
-        JScrollPane scrollPane = new JScrollPane(waveformPanel);
-        scrollPane.setVerticalScrollBarPolicy(JScrollPane.VERTICAL_SCROLLBAR_NEVER);
-        scrollPane.setHorizontalScrollBarPolicy(JScrollPane.HORIZONTAL_SCROLLBAR_AS_NEEDED);
+        waveformPanel.add(waveformCanvas.getScrollBar(), BorderLayout.SOUTH);
+        
+        levelMeter = new LevelMeter();
+        waveformPanel.add(levelMeter, BorderLayout.EAST);
         
-        add(scrollPane, BorderLayout.CENTER);
+        JLabel zoomHint = new JLabel("Wheel: zoom, Shift + wheel: scroll", JLabel.RIGHT);
+        waveformPanel.add(zoomHint, BorderLayout.NORTH);
+        
+        add(waveformPanel, BorderLayout.CENTER);
     }
     
     private void createStatusBar() {
@@ -366,10 +445,13 @@ public class AmplitudeModifierGUI extends JFrame implements AudioData.AudioDataL
     
     public void setControlsEnabled(boolean enabled) {
         amplitudeSlider.setEnabled(enabled);
+        loudnessTargetSpinner.setEnabled(enabled);
+        normalizeButton.setEnabled(enabled);
         antiDistortionCheckbox.setEnabled(enabled);
         thresholdSlider.setEnabled(enabled);
         ratioSlider.setEnabled(enabled);
         makeupGainSlider.setEnabled(enabled);
+        oversamplingCombo.setEnabled(enabled);
         noiseReductionCheckbox.setEnabled(enabled);
         noiseReductionAmountSlider.setEnabled(enabled);
         noiseFloorSlider.setEnabled(enabled);
@@ -378,14 +460,46 @@ public class AmplitudeModifierGUI extends JFrame implements AudioData.AudioDataL
         saveButton.setEnabled(enabled);
         playButton.setEnabled(enabled);
         stopButton.setEnabled(enabled);
+        selectionOnlyCheckbox.setEnabled(enabled);
     }
     
     public void setStatusMessage(String message) {
         statusLabel.setText(message);
     }
     
-    public void updateWaveform(float[] samples) {
-        waveformCanvas.setSamples(samples);
+    public void startPlaybackDisplay(PlaybackMonitor monitor) {
+        playbackMonitor = monitor;
+        if (playbackPeak.length != monitor.getNumChannels()) {
+            playbackPeak = new float[monitor.getNumChannels()];
+            playbackRms = new float[monitor.getNumChannels()];
+        }
+        levelMeter.setNumChannels(monitor.getNumChannels());
+        playbackTimer.start();
+    }
+    
+    public void stopPlaybackDisplay() {
+        playbackTimer.stop();
+        playbackMonitor = null;
+        waveformCanvas.setPlaybackFrame(-1);
+        levelMeter.reset();
+    }
+    
+    private void refreshPlayback() {
+        if (playbackMonitor == null) {
+            return;
+        }
+        
+        long frame = playbackMonitor.read(playbackPeak, playbackRms);
+        waveformCanvas.setPlaybackFrame(frame);
+        levelMeter.setLevels(playbackPeak, playbackRms);
+        
+        if (playbackMonitor.isFinished()) {
+            stopPlaybackDisplay();
+        }
+    }
+    
+    public void updateWaveform(PeakPyramid peaks) {
+        waveformCanvas.setPeaks(peaks);
     }
     
     @Override
@@ -0,0 +1,99 @@
+package affichage;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics;
+
+import javax.swing.JComponent;
+
+
+// Vertical peak/RMS bars, one per channel, on a dBFS scale from FLOOR_DB to 0.
+// setLevels only repaints the bars whose pixel heights changed and allocates
+// nothing, so it can run from a fast timer.
+public class LevelMeter extends JComponent {
+    private static final long serialVersionUID = 1L;
+
+    private static final double FLOOR_DB = -60.0;
+    private static final float PEAK_DECAY = 0.85f;
+    private static final int BAR_WIDTH = 10;
+    private static final int GAP = 3;
+
+    private float[] peakLevels = new float[0];
+    private int[] peakHeights = new int[0];
+    private int[] rmsHeights = new int[0];
+
+    public LevelMeter() {
+        setOpaque(true);
+        setBackground(Color.BLACK);
+        setNumChannels(2);
+    }
+
+    public void setNumChannels(int numChannels) {
+        if (numChannels != peakLevels.length) {
+            peakLevels = new float[numChannels];
+            peakHeights = new int[numChannels];
+            rmsHeights = new int[numChannels];
+            revalidate();
+        }
+        reset();
+    }
+
+    public void reset() {
+        for (int channel = 0; channel < peakLevels.length; channel++) {
+            peakLevels[channel] = 0.0f;
+            peakHeights[channel] = 0;
+            rmsHeights[channel] = 0;
+        }
+        repaint();
+    }
+
+    // Levels are linear amplitudes; the peak falls back at PEAK_DECAY per call.
+    public void setLevels(float[] peak, float[] rms) {
+        int height = getHeight();
+        for (int channel = 0; channel < peakLevels.length; channel++) {
+            peakLevels[channel] = Math.max(peak[channel], peakLevels[channel] * PEAK_DECAY);
+            int newPeak = barHeight(peakLevels[channel], height);
+            int newRms = barHeight(rms[channel], height);
+            if (newPeak != peakHeights[channel] || newRms != rmsHeights[channel]) {
+                int top = height - Math.max(Math.max(newPeak, peakHeights[channel]),
+                        Math.max(newRms, rmsHeights[channel])) - 1;
+                peakHeights[channel] = newPeak;
+                rmsHeights[channel] = newRms;
+                repaint(barX(channel), top, BAR_WIDTH, height - top);
+            }
+        }
+    }
+
+    private static int barHeight(float level, int height) {
+        if (level <= 0.0f) {
+            return 0;
+        }
+        double db = 20.0 * Math.log10(level);
+        double fraction = Math.max(0.0, Math.min(1.0, 1.0 - db / FLOOR_DB));
+        return (int) Math.round(fraction * height);
+    }
+
+    private static int barX(int channel) {
+        return GAP + channel * (BAR_WIDTH + GAP);
+    }
+
+    @Override
+    public Dimension getPreferredSize() {
+        return new Dimension(GAP + peakLevels.length * (BAR_WIDTH + GAP), 100);
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        int height = getHeight();
+        g.setColor(getBackground());
+        g.fillRect(0, 0, getWidth(), height);
+
+        for (int channel = 0; channel < peakLevels.length; channel++) {
+            int x = barX(channel);
+            g.setColor(Color.GREEN.darker());
+            g.fillRect(x, height - rmsHeights[channel], BAR_WIDTH, rmsHeights[channel]);
+            g.setColor(peakLevels[channel] >= 1.0f ? Color.RED : Color.YELLOW);
+            g.fillRect(x, height - peakHeights[channel], BAR_WIDTH, 2);
+        }
+    }
+}
@@ -4,27 +4,66 @@ import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
-import java.awt.RenderingHints;
+import java.awt.GraphicsConfiguration;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseMotionAdapter;
+import java.awt.event.MouseWheelEvent;
+import java.awt.image.BufferedImage;
 import java.util.ArrayList;
 import java.util.List;
 
 import javax.swing.JPanel;
+import javax.swing.JScrollBar;
+
+import entite.PeakPyramid;
 
 public class WaveformCanvas extends JPanel {
     private static final long serialVersionUID = 1L;
     
-    private float[] samples;
-    private int selectionStart = -1;
-    private int selectionEnd = -1;
+    private static final double MIN_FRAMES_PER_PIXEL = 1.0 / 16.0;
+    private static final double ZOOM_STEP = Math.pow(2.0, 0.25);
+    private static final int SCROLL_BITS = 30;
+    private static final Color SELECTION_FILL = new Color(0, 100, 200, 96);
+    private static final Color SELECTION_EDGE = new Color(0, 100, 200);
+    private static final Color CURSOR_COLOR = Color.WHITE;
+    
+    private PeakPyramid peaks;
+    private final WaveformTiles tiles = new WaveformTiles(this::tileReady);
+    
+    // The visible waveform composed from tiles into a screen-compatible image.
+    // Only content pixels in [dirtyFrom, dirtyTo) are recomposed before a
+    // paint; scrolling shifts the image and exposes the new columns, so
+    // overlays such as the selection cost a blit of the area they touch.
+    private BufferedImage waveformImage;
+    private double imageFramesPerPixel;
+    private long imageScrollPixel;
+    private long dirtyFrom = Long.MAX_VALUE;
+    private long dirtyTo = Long.MIN_VALUE;
+    
+    // The view starts at content pixel scrollPixel; content pixel p covers
+    // frames [p * framesPerPixel, (p + 1) * framesPerPixel).
+    private double framesPerPixel = 1.0;
+    private long scrollPixel = 0;
+    private boolean fitToWidth = true;
+    private final JScrollBar scrollBar = new JScrollBar(JScrollBar.HORIZONTAL);
+    private boolean updatingScrollBar = false;
+    // The scroll bar counts in units of 2^scrollShift frames, so its int model
+    // covers any long length.
+    private int scrollShift = 0;
+    // Selection edges are absolute frame boundaries: frames [start, end) of the
+    // displayed audio, independent of the zoom they were made at.
+    private long selectionStart = -1;
+    private long selectionEnd = -1;
     private boolean isDragging = false;
+    private long playbackFrame = -1;
     
     private List<SelectionListener> selectionListeners = new ArrayList<>();
     
     public interface SelectionListener {
-        void onSelectionChanged(int startSample, int endSample);
+        void onSelectionChanged(long startFrame, long endFrame);
     }
     
     public WaveformCanvas() {
@@ -34,11 +73,10 @@ public class WaveformCanvas extends JPanel {
         addMouseListener(new MouseAdapter() {
             @Override
             public void mousePressed(MouseEvent e) {
-                if (samples != null && samples.length > 0) {
-                    selectionStart = sampleIndexFromX(e.getX());
-                    selectionEnd = selectionStart;
+                if (hasPeaks()) {
+                    long frame = frameFromX(e.getX());
                     isDragging = true;
-                    repaint();
+                    setSelection(frame, frame);
                     notifySelectionChanged();
                 }
             }
@@ -46,9 +84,8 @@ public class WaveformCanvas extends JPanel {
             @Override
             public void mouseReleased(MouseEvent e) {
                 if (isDragging) {
-                    selectionEnd = sampleIndexFromX(e.getX());
                     isDragging = false;
-                    repaint();
+                    setSelection(selectionStart, frameFromX(e.getX()));
                     notifySelectionChanged();
                 }
             }
@@ -57,13 +94,84 @@ public class WaveformCanvas extends JPanel {
         addMouseMotionListener(new MouseMotionAdapter() {
             @Override
             public void mouseDragged(MouseEvent e) {
-                if (isDragging && samples != null && samples.length > 0) {
-                    selectionEnd = sampleIndexFromX(e.getX());
-                    repaint();
+                if (isDragging && hasPeaks()) {
+                    setSelection(selectionStart, frameFromX(e.getX()));
                     notifySelectionChanged();
                 }
             }
         });
+        
+        addMouseWheelListener(this::mouseWheelMoved);
+        
+        addComponentListener(new ComponentAdapter() {
+            @Override
+            public void componentResized(ComponentEvent e) {
+                updateView(framesPerPixel, scrollPixel);
+            }
+        });
+        
+        scrollBar.getModel().addChangeListener(e -> {
+            if (!updatingScrollBar && hasPeaks()) {
+                long contentWidth = (long) Math.ceil(peaks.getNumFrames() / framesPerPixel);
+                long endPixel = Math.max(0, contentWidth - getWidth());
+                // A unit can span several frames, so the last position snaps to the end.
+                scrollPixel = scrollBar.getValue() + scrollBar.getVisibleAmount() >= scrollBar.getMaximum()
+                    ? endPixel
+                    : Math.min(endPixel, Math.round(((long) scrollBar.getValue() << scrollShift) / framesPerPixel));
+                repaint();
+            }
+        });
+    }
+    
+    // Scrolls the view in frames; the caller lays it out next to the canvas.
+    public JScrollBar getScrollBar() {
+        return scrollBar;
+    }
+    
+    // Wheel zooms around the pointer; shift + wheel scrolls.
+    private void mouseWheelMoved(MouseWheelEvent e) {
+        if (!hasPeaks()) {
+            return;
+        }
+        
+        double rotation = e.getPreciseWheelRotation();
+        if (e.isShiftDown()) {
+            updateView(framesPerPixel, scrollPixel + Math.round(rotation * getWidth() / 8.0));
+            return;
+        }
+        
+        double anchorFrame = (scrollPixel + e.getX()) * framesPerPixel;
+        double zoomed = framesPerPixel * Math.pow(ZOOM_STEP, rotation);
+        fitToWidth = zoomed >= fitFramesPerPixel();
+        double newFramesPerPixel = Math.max(MIN_FRAMES_PER_PIXEL, zoomed);
+        updateView(newFramesPerPixel, Math.round(anchorFrame / newFramesPerPixel - e.getX()));
+    }
+    
+    private double fitFramesPerPixel() {
+        return (double) peaks.getNumFrames() / Math.max(1, getWidth());
+    }
+    
+    private void updateView(double newFramesPerPixel, long newScrollPixel) {
+        if (!hasPeaks()) {
+            return;
+        }
+        
+        framesPerPixel = fitToWidth ? fitFramesPerPixel() : newFramesPerPixel;
+        long contentWidth = (long) Math.ceil(peaks.getNumFrames() / framesPerPixel);
+        scrollPixel = Math.max(0, Math.min(newScrollPixel, contentWidth - getWidth()));
+        
+        long numFrames = peaks.getNumFrames();
+        scrollShift = Math.max(0, Long.SIZE - Long.numberOfLeadingZeros(numFrames) - SCROLL_BITS);
+        int numUnits = (int) (numFrames >> scrollShift);
+        int visibleUnits = (int) Math.min(numUnits, Math.ceil(getWidth() * framesPerPixel / (1L << scrollShift)));
+        int value = (int) Math.min(numUnits - visibleUnits, Math.round(scrollPixel * framesPerPixel) >> scrollShift);
+        updatingScrollBar = true;
+        scrollBar.setValues(value, visibleUnits, 0, numUnits);
+        scrollBar.setUnitIncrement(Math.max(1, visibleUnits / 16));
+        scrollBar.setBlockIncrement(Math.max(1, visibleUnits));
+        updatingScrollBar = false;
+        
+        repaint();
     }
     
     public void addSelectionListener(SelectionListener listener) {
@@ -75,106 +183,247 @@ public class WaveformCanvas extends JPanel {
     }
     
     private void notifySelectionChanged() {
-        int start = Math.min(selectionStart, selectionEnd);
-        int end = Math.max(selectionStart, selectionEnd);
+        long start = Math.min(selectionStart, selectionEnd);
+        long end = Math.max(selectionStart, selectionEnd);
         
         for (SelectionListener listener : selectionListeners) {
             listener.onSelectionChanged(start, end);
         }
     }
     
-    public void setSamples(float[] samples) {
-        this.samples = samples;
-        selectionStart = -1;
-        selectionEnd = -1;
+    // A re-render of the same audio keeps the zoom, scroll position and selection.
+    public void setPeaks(PeakPyramid peaks) {
+        if (peaks == this.peaks) {
+            return;
+        }
+        
+        boolean sameLength = this.peaks != null && peaks != null
+                && this.peaks.getNumFrames() == peaks.getNumFrames();
+        this.peaks = peaks;
+        tiles.setPeaks(peaks);
+        invalidateWaveform(Long.MIN_VALUE, Long.MAX_VALUE);
+        
+        if (!sameLength) {
+            selectionStart = -1;
+            selectionEnd = -1;
+            fitToWidth = true;
+        }
+        updateView(framesPerPixel, sameLength ? scrollPixel : 0);
         repaint();
     }
     
-    public int[] getSelection() {
-        if (selectionStart < 0 || selectionEnd < 0 || samples == null) {
+    // The displayed pyramid was refined in place over [fromFrame, toFrame);
+    // only the columns showing that range are redrawn.
+    public void peaksChanged(long fromFrame, long toFrame) {
+        if (!hasPeaks()) {
+            return;
+        }
+        
+        tiles.invalidate(fromFrame, toFrame);
+        
+        double margin = Math.max(1.0, PeakPyramid.BASE_BUCKET / framesPerPixel);
+        repaintWaveform((long) Math.floor(fromFrame / framesPerPixel - margin),
+                (long) Math.ceil(toFrame / framesPerPixel + margin));
+    }
+    
+    private void tileReady(double tileFramesPerPixel, long tileIndex) {
+        if (tileFramesPerPixel == framesPerPixel) {
+            repaintWaveform(tileIndex * WaveformTiles.TILE_WIDTH, (tileIndex + 1) * WaveformTiles.TILE_WIDTH);
+        }
+    }
+    
+    // Recomposes content pixels [fromPixel, toPixel) and repaints the part in view.
+    private void repaintWaveform(long fromPixel, long toPixel) {
+        invalidateWaveform(fromPixel, toPixel);
+        long x1 = Math.max(0, fromPixel - scrollPixel);
+        long x2 = Math.min(getWidth(), toPixel - scrollPixel);
+        if (x1 < x2) {
+            repaint((int) x1, 0, (int) (x2 - x1), getHeight());
+        }
+    }
+    
+    private void invalidateWaveform(long fromPixel, long toPixel) {
+        dirtyFrom = Math.min(dirtyFrom, fromPixel);
+        dirtyTo = Math.max(dirtyTo, toPixel);
+    }
+    
+    // True while the selection is being dragged, like a slider's getValueIsAdjusting.
+    public boolean isAdjustingSelection() {
+        return isDragging;
+    }
+    
+    // { startFrame, endFrame }, end exclusive, or null.
+    public long[] getSelection() {
+        if (selectionStart < 0 || selectionEnd < 0 || peaks == null) {
             return null;
         }
         
-        int start = Math.min(selectionStart, selectionEnd);
-        int end = Math.max(selectionStart, selectionEnd);
+        long start = Math.min(selectionStart, selectionEnd);
+        long end = Math.max(selectionStart, selectionEnd);
         
-        return new int[] { start, end };
+        return new long[] { start, end };
+    }
+    
+    // Moves the playback cursor, or hides it for a negative frame; only the
+    // old and new cursor columns are repainted.
+    public void setPlaybackFrame(long frame) {
+        if (frame == playbackFrame) {
+            return;
+        }
+        
+        if (playbackFrame >= 0) {
+            int x = xFromFrame(playbackFrame);
+            repaint(x - 1, 0, 3, getHeight());
+        }
+        playbackFrame = frame;
+        if (playbackFrame >= 0) {
+            int x = xFromFrame(playbackFrame);
+            repaint(x - 1, 0, 3, getHeight());
+        }
     }
     
     public void clearSelection() {
-        selectionStart = -1;
-        selectionEnd = -1;
-        repaint();
+        setSelection(-1, -1);
     }
     
-    private int sampleIndexFromX(int x) {
-        if (samples == null || samples.length == 0) {
+    // Repaints only the columns between the old and new edges.
+    private void setSelection(long start, long end) {
+        boolean hadSelection = selectionStart >= 0 && selectionEnd >= 0;
+        int oldX1 = xFromFrame(Math.min(selectionStart, selectionEnd));
+        int oldX2 = xFromFrame(Math.max(selectionStart, selectionEnd));
+        selectionStart = start;
+        selectionEnd = end;
+        boolean hasSelection = selectionStart >= 0 && selectionEnd >= 0;
+        int newX1 = xFromFrame(Math.min(selectionStart, selectionEnd));
+        int newX2 = xFromFrame(Math.max(selectionStart, selectionEnd));
+        
+        if (hadSelection && hasSelection) {
+            repaintColumns(oldX1, newX1);
+            repaintColumns(oldX2, newX2);
+        } else if (hadSelection) {
+            repaintColumns(oldX1, oldX2);
+        } else if (hasSelection) {
+            repaintColumns(newX1, newX2);
+        }
+    }
+    
+    // Columns a to b inclusive, plus the edge lines on either side.
+    private void repaintColumns(int a, int b) {
+        int from = Math.min(a, b) - 1;
+        int to = Math.max(a, b) + 2;
+        repaint(from, 0, to - from, getHeight());
+    }
+    
+    private boolean hasPeaks() {
+        return peaks != null && peaks.getNumFrames() > 0;
+    }
+    
+    // The frame boundary nearest to the pointer, computed from the content
+    // pixel in 64-bit so long files keep every frame addressable; zoomed in
+    // below one frame per pixel, each boundary can be hit exactly.
+    private long frameFromX(int x) {
+        if (!hasPeaks()) {
             return -1;
         }
         
-        double ratio = (double) x / getWidth();
-        return (int) (ratio * samples.length);
+        long frame = Math.round((scrollPixel + x) * framesPerPixel);
+        return Math.max(0, Math.min(peaks.getNumFrames(), frame));
     }
     
-    private int xFromSampleIndex(int sampleIndex) {
-        if (samples == null || samples.length == 0) {
+    private int xFromFrame(long frame) {
+        if (!hasPeaks()) {
             return -1;
         }
         
-        double ratio = (double) sampleIndex / samples.length;
-        return (int) (ratio * getWidth());
+        double x = frame / framesPerPixel - scrollPixel;
+        return (int) Math.round(Math.max(-1, Math.min(getWidth() + 1, x)));
     }
     
     @Override
     protected void paintComponent(Graphics g) {
         super.paintComponent(g);
         
-        if (samples == null || samples.length == 0) {
+        if (!hasPeaks() || getWidth() <= 0 || getHeight() <= 0) {
             return;
         }
         
-        Graphics2D g2d = (Graphics2D) g;
-        g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-        
-        int width = getWidth();
-        int height = getHeight();
-        int centerY = height / 2;
+        updateWaveformImage();
+        g.drawImage(waveformImage, 0, 0, null);
         
         if (selectionStart >= 0 && selectionEnd >= 0) {
-            int x1 = xFromSampleIndex(Math.min(selectionStart, selectionEnd));
-            int x2 = xFromSampleIndex(Math.max(selectionStart, selectionEnd));
+            int x1 = xFromFrame(Math.min(selectionStart, selectionEnd));
+            int x2 = xFromFrame(Math.max(selectionStart, selectionEnd));
+            int height = getHeight();
             
-            g2d.fillRect(x1, 0, x2 - x1, height);
+            g.setColor(SELECTION_FILL);
+            g.fillRect(x1, 0, x2 - x1, height);
             
-            g2d.setColor(new Color(0, 100, 200));
-            g2d.drawLine(x1, 0, x1, height);
-            g2d.drawLine(x2, 0, x2, height);
+            g.setColor(SELECTION_EDGE);
+            g.drawLine(x1, 0, x1, height);
+            g.drawLine(x2, 0, x2, height);
         }
         
-        g2d.setColor(Color.GREEN);
-        
-        float samplesPerPixel = (float) samples.length / width;
+        if (playbackFrame >= 0) {
+            int x = xFromFrame(playbackFrame);
+            g.setColor(CURSOR_COLOR);
+            g.drawLine(x, 0, x, getHeight());
+        }
+    }
+    
+    private void updateWaveformImage() {
+        int width = getWidth();
+        int height = getHeight();
         
-        for (int x = 0; x < width; x++) {
-            int sampleIndex = (int) (x * samplesPerPixel);
-            int nextSampleIndex = (int) ((x + 1) * samplesPerPixel);
-            
-            float min = 0;
-            float max = 0;
-            
-            for (int i = sampleIndex; i < nextSampleIndex && i < samples.length; i++) {
-                if (samples[i] < min) min = samples[i];
-                if (samples[i] > max) max = samples[i];
+        if (waveformImage == null || waveformImage.getWidth() != width || waveformImage.getHeight() != height) {
+            GraphicsConfiguration config = getGraphicsConfiguration();
+            waveformImage = config != null
+                ? config.createCompatibleImage(width, height)
+                : new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            invalidateWaveform(Long.MIN_VALUE, Long.MAX_VALUE);
+        } else if (imageFramesPerPixel != framesPerPixel) {
+            invalidateWaveform(Long.MIN_VALUE, Long.MAX_VALUE);
+        } else if (imageScrollPixel != scrollPixel) {
+            long shift = imageScrollPixel - scrollPixel;
+            if (Math.abs(shift) < width) {
+                Graphics g = waveformImage.getGraphics();
+                if (shift > 0) {
+                    g.copyArea(0, 0, width - (int) shift, height, (int) shift, 0);
+                    invalidateWaveform(scrollPixel, imageScrollPixel);
+                } else {
+                    g.copyArea((int) -shift, 0, width + (int) shift, height, (int) shift, 0);
+                    invalidateWaveform(imageScrollPixel + width, scrollPixel + width);
+                }
+                g.dispose();
+            } else {
+                invalidateWaveform(Long.MIN_VALUE, Long.MAX_VALUE);
             }
-            
-            if (min == 0 && max == 0 && sampleIndex < samples.length) {
-                min = max = samples[sampleIndex];
+        }
+        imageFramesPerPixel = framesPerPixel;
+        imageScrollPixel = scrollPixel;
+        
+        long firstTile = scrollPixel / WaveformTiles.TILE_WIDTH;
+        long lastTile = (scrollPixel + width - 1) / WaveformTiles.TILE_WIDTH;
+        tiles.setVisibleRange(framesPerPixel, firstTile, lastTile);
+        
+        long x1 = Math.max(dirtyFrom, scrollPixel) - scrollPixel;
+        long x2 = Math.min(dirtyTo, scrollPixel + width) - scrollPixel;
+        dirtyFrom = Long.MAX_VALUE;
+        dirtyTo = Long.MIN_VALUE;
+        if (x1 >= x2) {
+            return;
+        }
+        
+        Graphics2D g2d = waveformImage.createGraphics();
+        g2d.setClip((int) x1, 0, (int) (x2 - x1), height);
+        g2d.setColor(getBackground());
+        g2d.fillRect((int) x1, 0, (int) (x2 - x1), height);
+        for (long tileIndex = (scrollPixel + x1) / WaveformTiles.TILE_WIDTH;
+                tileIndex <= (scrollPixel + x2 - 1) / WaveformTiles.TILE_WIDTH; tileIndex++) {
+            BufferedImage tile = tiles.get(framesPerPixel, tileIndex, height);
+            if (tile != null) {
+                g2d.drawImage(tile, (int) (tileIndex * WaveformTiles.TILE_WIDTH - scrollPixel), 0, null);
             }
-            
-            int y1 = centerY + (int) (min * centerY);
-            int y2 = centerY + (int) (max * centerY);
-            
-            g2d.drawLine(x, y1, x, y2);
         }
+        g2d.dispose();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,190 @@
+package affichage;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.swing.SwingUtilities;
+
+import entite.PeakPyramid;
+
+
+// Waveform images TILE_WIDTH pixels wide, keyed by zoom, tile index and height.
+// Missing tiles are drawn on a background thread; the cache and the pending set
+// are only touched on the EDT, and the least recently drawn tiles are evicted.
+class WaveformTiles {
+
+    static final int TILE_WIDTH = 256;
+    private static final int MAX_TILES = 192;
+
+    interface Listener {
+        void tileReady(double framesPerPixel, long tileIndex);
+    }
+
+    private final Listener listener;
+    private final ExecutorService renderer = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "waveform-tiles");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Map<TileKey, BufferedImage> tiles = new LinkedHashMap<TileKey, BufferedImage>(64, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<TileKey, BufferedImage> eldest) {
+            if (size() > MAX_TILES) {
+                stale.remove(eldest.getKey());
+                return true;
+            }
+            return false;
+        }
+    };
+    // Cached tiles whose peaks changed; they are still drawn until redone.
+    private final Set<TileKey> stale = new HashSet<>();
+    // Pending renders by key; an invalidated render finds its entry gone or
+    // replaced and is dropped.
+    private final Map<TileKey, Object> pending = new HashMap<>();
+
+    private PeakPyramid peaks;
+    private int generation = 0;
+
+    // Tiles still worth drawing when the renderer reaches them.
+    private volatile double visibleFramesPerPixel;
+    private volatile long visibleFirstTile;
+    private volatile long visibleLastTile;
+
+    WaveformTiles(Listener listener) {
+        this.listener = listener;
+    }
+
+    void setPeaks(PeakPyramid peaks) {
+        this.peaks = peaks;
+        generation++;
+        tiles.clear();
+        stale.clear();
+        pending.clear();
+    }
+
+    void setVisibleRange(double framesPerPixel, long firstTile, long lastTile) {
+        visibleFramesPerPixel = framesPerPixel;
+        visibleFirstTile = firstTile;
+        visibleLastTile = lastTile;
+    }
+
+    // Returns the cached tile, or null; missing and stale tiles are queued.
+    BufferedImage get(double framesPerPixel, long tileIndex, int height) {
+        TileKey key = new TileKey(framesPerPixel, tileIndex, height, generation);
+        BufferedImage tile = tiles.get(key);
+        if ((tile == null || stale.contains(key)) && peaks != null && !pending.containsKey(key)) {
+            Object request = new Object();
+            pending.put(key, request);
+            PeakPyramid source = peaks;
+            renderer.execute(() -> {
+                BufferedImage image = isVisible(key) ? render(source, key) : null;
+                SwingUtilities.invokeLater(() -> {
+                    if (!pending.remove(key, request)) {
+                        return;
+                    }
+                    if (image != null && key.generation == generation) {
+                        tiles.put(key, image);
+                        stale.remove(key);
+                        listener.tileReady(key.framesPerPixel, key.tileIndex);
+                    } else if (image == null && isVisible(key)) {
+                        // Skipped while scrolled away; ask again now it is back in view.
+                        listener.tileReady(key.framesPerPixel, key.tileIndex);
+                    }
+                });
+            });
+        }
+        return tile;
+    }
+
+    // Marks cached tiles that show any frame of [fromFrame, toFrame) stale and
+    // drops in-flight renders of them, which may have read the old peaks.
+    void invalidate(long fromFrame, long toFrame) {
+        for (TileKey key : tiles.keySet()) {
+            if (key.overlaps(fromFrame, toFrame)) {
+                stale.add(key);
+            }
+        }
+        pending.keySet().removeIf(key -> key.overlaps(fromFrame, toFrame));
+    }
+
+    private boolean isVisible(TileKey key) {
+        return key.framesPerPixel == visibleFramesPerPixel
+                && key.tileIndex >= visibleFirstTile && key.tileIndex <= visibleLastTile;
+    }
+
+    private static BufferedImage render(PeakPyramid peaks, TileKey key) {
+        float[] min = new float[TILE_WIDTH];
+        float[] max = new float[TILE_WIDTH];
+        peaks.fillColumns(key.tileIndex * TILE_WIDTH * key.framesPerPixel, key.framesPerPixel, min, max, TILE_WIDTH);
+
+        BufferedImage image = new BufferedImage(TILE_WIDTH, key.height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g2d = image.createGraphics();
+        g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g2d.setColor(Color.GREEN);
+
+        int centerY = key.height / 2;
+        for (int x = 0; x < TILE_WIDTH; x++) {
+            if (min[x] > max[x]) {
+                continue;
+            }
+
+            int y1 = centerY + (int) (min[x] * centerY);
+            int y2 = centerY + (int) (max[x] * centerY);
+
+            g2d.drawLine(x, y1, x, y2);
+        }
+        g2d.dispose();
+        return image;
+    }
+
+
+    private static final class TileKey {
+        final double framesPerPixel;
+        final long tileIndex;
+        final int height;
+        final int generation;
+
+        TileKey(double framesPerPixel, long tileIndex, int height, int generation) {
+            this.framesPerPixel = framesPerPixel;
+            this.tileIndex = tileIndex;
+            this.height = height;
+            this.generation = generation;
+        }
+
+        boolean overlaps(long fromFrame, long toFrame) {
+            double start = tileIndex * TILE_WIDTH * framesPerPixel;
+            double end = start + TILE_WIDTH * framesPerPixel;
+            // Columns snap to pyramid buckets, so allow one coarse bucket either side.
+            double margin = Math.max(framesPerPixel, PeakPyramid.BASE_BUCKET);
+            return start - margin < toFrame && end + margin > fromFrame;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof TileKey)) {
+                return false;
+            }
+            TileKey key = (TileKey) other;
+            return framesPerPixel == key.framesPerPixel && tileIndex == key.tileIndex
+                    && height == key.height && generation == key.generation;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(framesPerPixel, tileIndex, height, generation);
+        }
+    }
+}
@@ -1,112 +1,302 @@
 
 package entite;
 
+import javax.sound.sampled.AudioFormat;
+
 public interface AmplitudeModifier {
     byte[] modifyAmplitude(byte[] audioData, float amplificationFactor);
-    
-    static AmplitudeModifier createForFormat(javax.sound.sampled.AudioFormat format) {
-        int bytesPerSample = format.getSampleSizeInBits() / 8;
+
+    // Writes the scaled samples of source into target; target may be source itself.
+    void modifyAmplitude(byte[] source, byte[] target, float amplificationFactor);
+
+    default void modifyAmplitudeInPlace(byte[] audioData, float amplificationFactor) {
+        modifyAmplitude(audioData, audioData, amplificationFactor);
+    }
+
+    byte[] modifyAmplitude(byte[] audioData, GainEnvelope envelope);
+
+    // Frame 0 of source is frame 0 of the envelope; target may be source itself.
+    void modifyAmplitude(byte[] source, byte[] target, GainEnvelope envelope);
+
+    // Factors this close to 1 leave the samples untouched rather than
+    // rounding every one of them.
+    static boolean isUnity(float amplificationFactor) {
+        return Math.abs(amplificationFactor - 1.0f) < 0.001f;
+    }
+
+    // True when the kernels pass every sample through unscaled under envelope.
+    static boolean isUnity(GainEnvelope envelope) {
+        return envelope.isConstant() && isUnity(envelope.gainAt(0));
+    }
+
+    // The largest gain the kernels really apply under envelope: a constant
+    // gain in the unity band passes the samples through unscaled.
+    static float getAppliedMaxGain(GainEnvelope envelope) {
+        if (isUnity(envelope)) {
+            return 1.0f;
+        }
+        return envelope.getMaxGain();
+    }
+
+    // The kernel is picked once per format, so the per-sample loops never
+    // re-dispatch on bit depth or byte order.
+    static AmplitudeModifier createForFormat(AudioFormat format) {
+        int sampleSizeInBits = format.getSampleSizeInBits();
         boolean isBigEndian = format.isBigEndian();
-        
-        return new OptimizedAmplitudeModifier(bytesPerSample, isBigEndian);
+        int channels = format.getChannels();
+
+        switch (sampleSizeInBits) {
+            case 8:
+                return new EightBitAmplitudeModifier(channels);
+            case 16:
+                return isBigEndian
+                        ? new SixteenBitBigEndianAmplitudeModifier(channels)
+                        : new SixteenBitLittleEndianAmplitudeModifier(channels);
+            case 24:
+                return isBigEndian
+                        ? new TwentyFourBitBigEndianAmplitudeModifier(channels)
+                        : new TwentyFourBitLittleEndianAmplitudeModifier(channels);
+            default:
+                throw new IllegalArgumentException("Unsupported sample size: " + sampleSizeInBits);
+        }
     }
 }
 
-class OptimizedAmplitudeModifier implements AmplitudeModifier {
+abstract class PcmAmplitudeModifier implements AmplitudeModifier {
+    private static final int BLOCK_FRAMES = 1024;
+
     private final int bytesPerSample;
-    private final boolean isBigEndian;
-    
-    public OptimizedAmplitudeModifier(int bytesPerSample, boolean isBigEndian) {
+    private final int channels;
+
+    PcmAmplitudeModifier(int bytesPerSample, int channels) {
         this.bytesPerSample = bytesPerSample;
-        this.isBigEndian = isBigEndian;
+        this.channels = channels;
     }
-    
+
     @Override
     public byte[] modifyAmplitude(byte[] audioData, float amplificationFactor) {
-        if (Math.abs(amplificationFactor - 1.0f) < 0.001f) {
+        if (AmplitudeModifier.isUnity(amplificationFactor)) {
             return audioData.clone();
         }
-        
+
+        byte[] modifiedData = new byte[audioData.length];
+        modifyAmplitude(audioData, modifiedData, amplificationFactor);
+        return modifiedData;
+    }
+
+    @Override
+    public void modifyAmplitude(byte[] source, byte[] target, float amplificationFactor) {
+        if (AmplitudeModifier.isUnity(amplificationFactor)) {
+            if (source != target) {
+                System.arraycopy(source, 0, target, 0, source.length);
+            }
+            return;
+        }
+
+        int end = source.length - source.length % bytesPerSample;
+        processRange(source, target, 0, end, amplificationFactor);
+
+        if (source != target && end < source.length) {
+            System.arraycopy(source, end, target, end, source.length - end);
+        }
+    }
+
+    @Override
+    public byte[] modifyAmplitude(byte[] audioData, GainEnvelope envelope) {
+        if (envelope.isConstant()) {
+            return modifyAmplitude(audioData, envelope.gainAt(0));
+        }
+
         byte[] modifiedData = new byte[audioData.length];
-        
-        final int CHUNK_SIZE = 1024 * bytesPerSample;
-        
-        for (int offset = 0; offset < audioData.length; offset += CHUNK_SIZE) {
-            int chunkEnd = Math.min(offset + CHUNK_SIZE, audioData.length);
-            processChunk(audioData, modifiedData, offset, chunkEnd, amplificationFactor);
-        }
-        
+        modifyAmplitude(audioData, modifiedData, envelope);
         return modifiedData;
     }
-    
-    private void processChunk(byte[] audioData, byte[] modifiedData, int start, int end, float amplificationFactor) {
-        for (int i = start; i < end; i += bytesPerSample) {
-            if (bytesPerSample == 1) {
-                processSample8Bit(audioData, modifiedData, i, amplificationFactor);
-            } else if (bytesPerSample == 2) {
-                processSample16Bit(audioData, modifiedData, i, amplificationFactor);
-            } else if (bytesPerSample == 3) {
-                processSample24Bit(audioData, modifiedData, i, amplificationFactor);
+
+    // Gains are evaluated a block at a time, then applied per frame to all channels.
+    @Override
+    public void modifyAmplitude(byte[] source, byte[] target, GainEnvelope envelope) {
+        if (envelope.isConstant()) {
+            modifyAmplitude(source, target, envelope.gainAt(0));
+            return;
+        }
+
+        int frameSize = bytesPerSample * channels;
+        int totalFrames = source.length / frameSize;
+        float[] gains = new float[BLOCK_FRAMES];
+
+        for (int frame = 0; frame < totalFrames; frame += BLOCK_FRAMES) {
+            int frames = Math.min(BLOCK_FRAMES, totalFrames - frame);
+            envelope.fill(frame, gains, 0, frames);
+            applyGains(source, target, frame * frameSize, gains, frames, channels);
+        }
+
+        int end = totalFrames * frameSize;
+        if (source != target && end < source.length) {
+            System.arraycopy(source, end, target, end, source.length - end);
+        }
+    }
+
+    abstract void processRange(byte[] source, byte[] target, int start, int end, float amplificationFactor);
+
+    abstract void applyGains(byte[] source, byte[] target, int start, float[] gains, int frames, int channels);
+}
+
+final class EightBitAmplitudeModifier extends PcmAmplitudeModifier {
+    EightBitAmplitudeModifier(int channels) {
+        super(1, channels);
+    }
+
+    @Override
+    void processRange(byte[] source, byte[] target, int start, int end, float amplificationFactor) {
+        for (int i = start; i < end; i++) {
+            int sample = Math.round(((source[i] & 0xFF) - 128) * amplificationFactor);
+            sample = Math.min(127, Math.max(-128, sample));
+            target[i] = (byte) (sample + 128);
+        }
+    }
+
+    @Override
+    void applyGains(byte[] source, byte[] target, int start, float[] gains, int frames, int channels) {
+        int i = start;
+        for (int frame = 0; frame < frames; frame++) {
+            float gain = gains[frame];
+            for (int channel = 0; channel < channels; channel++, i++) {
+                int sample = Math.round(((source[i] & 0xFF) - 128) * gain);
+                sample = Math.min(127, Math.max(-128, sample));
+                target[i] = (byte) (sample + 128);
+            }
+        }
+    }
+}
+
+final class SixteenBitLittleEndianAmplitudeModifier extends PcmAmplitudeModifier {
+    SixteenBitLittleEndianAmplitudeModifier(int channels) {
+        super(2, channels);
+    }
+
+    @Override
+    void processRange(byte[] source, byte[] target, int start, int end, float amplificationFactor) {
+        for (int i = start; i < end; i += 2) {
+            int sample = (source[i + 1] << 8) | (source[i] & 0xFF);
+            sample = Math.round(sample * amplificationFactor);
+            sample = Math.min(32767, Math.max(-32768, sample));
+            target[i] = (byte) sample;
+            target[i + 1] = (byte) (sample >> 8);
+        }
+    }
+
+    @Override
+    void applyGains(byte[] source, byte[] target, int start, float[] gains, int frames, int channels) {
+        int i = start;
+        for (int frame = 0; frame < frames; frame++) {
+            float gain = gains[frame];
+            for (int channel = 0; channel < channels; channel++, i += 2) {
+                int sample = (source[i + 1] << 8) | (source[i] & 0xFF);
+                sample = Math.round(sample * gain);
+                sample = Math.min(32767, Math.max(-32768, sample));
+                target[i] = (byte) sample;
+                target[i + 1] = (byte) (sample >> 8);
+            }
+        }
+    }
+}
+
+final class SixteenBitBigEndianAmplitudeModifier extends PcmAmplitudeModifier {
+    SixteenBitBigEndianAmplitudeModifier(int channels) {
+        super(2, channels);
+    }
+
+    @Override
+    void processRange(byte[] source, byte[] target, int start, int end, float amplificationFactor) {
+        for (int i = start; i < end; i += 2) {
+            int sample = (source[i] << 8) | (source[i + 1] & 0xFF);
+            sample = Math.round(sample * amplificationFactor);
+            sample = Math.min(32767, Math.max(-32768, sample));
+            target[i] = (byte) (sample >> 8);
+            target[i + 1] = (byte) sample;
+        }
+    }
+
+    @Override
+    void applyGains(byte[] source, byte[] target, int start, float[] gains, int frames, int channels) {
+        int i = start;
+        for (int frame = 0; frame < frames; frame++) {
+            float gain = gains[frame];
+            for (int channel = 0; channel < channels; channel++, i += 2) {
+                int sample = (source[i] << 8) | (source[i + 1] & 0xFF);
+                sample = Math.round(sample * gain);
+                sample = Math.min(32767, Math.max(-32768, sample));
+                target[i] = (byte) (sample >> 8);
+                target[i + 1] = (byte) sample;
+            }
+        }
+    }
+}
+
+final class TwentyFourBitLittleEndianAmplitudeModifier extends PcmAmplitudeModifier {
+    TwentyFourBitLittleEndianAmplitudeModifier(int channels) {
+        super(3, channels);
+    }
+
+    @Override
+    void processRange(byte[] source, byte[] target, int start, int end, float amplificationFactor) {
+        for (int i = start; i < end; i += 3) {
+            int sample = (source[i + 2] << 16) | ((source[i + 1] & 0xFF) << 8) | (source[i] & 0xFF);
+            sample = Math.round(sample * amplificationFactor);
+            sample = Math.min(8388607, Math.max(-8388608, sample));
+            target[i] = (byte) sample;
+            target[i + 1] = (byte) (sample >> 8);
+            target[i + 2] = (byte) (sample >> 16);
+        }
+    }
+
+    @Override
+    void applyGains(byte[] source, byte[] target, int start, float[] gains, int frames, int channels) {
+        int i = start;
+        for (int frame = 0; frame < frames; frame++) {
+            float gain = gains[frame];
+            for (int channel = 0; channel < channels; channel++, i += 3) {
+                int sample = (source[i + 2] << 16) | ((source[i + 1] & 0xFF) << 8) | (source[i] & 0xFF);
+                sample = Math.round(sample * gain);
+                sample = Math.min(8388607, Math.max(-8388608, sample));
+                target[i] = (byte) sample;
+                target[i + 1] = (byte) (sample >> 8);
+                target[i + 2] = (byte) (sample >> 16);
+            }
+        }
+    }
+}
+
+final class TwentyFourBitBigEndianAmplitudeModifier extends PcmAmplitudeModifier {
+    TwentyFourBitBigEndianAmplitudeModifier(int channels) {
+        super(3, channels);
+    }
+
+    @Override
+    void processRange(byte[] source, byte[] target, int start, int end, float amplificationFactor) {
+        for (int i = start; i < end; i += 3) {
+            int sample = (source[i] << 16) | ((source[i + 1] & 0xFF) << 8) | (source[i + 2] & 0xFF);
+            sample = Math.round(sample * amplificationFactor);
+            sample = Math.min(8388607, Math.max(-8388608, sample));
+            target[i] = (byte) (sample >> 16);
+            target[i + 1] = (byte) (sample >> 8);
+            target[i + 2] = (byte) sample;
+        }
+    }
+
+    @Override
+    void applyGains(byte[] source, byte[] target, int start, float[] gains, int frames, int channels) {
+        int i = start;
+        for (int frame = 0; frame < frames; frame++) {
+            float gain = gains[frame];
+            for (int channel = 0; channel < channels; channel++, i += 3) {
+                int sample = (source[i] << 16) | ((source[i + 1] & 0xFF) << 8) | (source[i + 2] & 0xFF);
+                sample = Math.round(sample * gain);
+                sample = Math.min(8388607, Math.max(-8388608, sample));
+                target[i] = (byte) (sample >> 16);
+                target[i + 1] = (byte) (sample >> 8);
+                target[i + 2] = (byte) sample;
             }
         }
     }
-    
-    private void processSample8Bit(byte[] audioData, byte[] modifiedData, int index, float amplificationFactor) {
-        int sample = audioData[index] & 0xFF; 
-        sample = sample - 128; 
-        sample = Math.round(sample * amplificationFactor); 
-        sample = Math.min(127, Math.max(-128, sample));
-        sample = sample + 128; 
-        modifiedData[index] = (byte) sample;
-    }
-    
-    private void processSample16Bit(byte[] audioData, byte[] modifiedData, int index, float amplificationFactor) {
-        int sample;
-        if (isBigEndian) {
-            sample = (audioData[index] << 8) | (audioData[index + 1] & 0xFF);
-        } else {
-            sample = (audioData[index + 1] << 8) | (audioData[index] & 0xFF);
-        }
-        
-        if ((sample & 0x8000) != 0) {
-            sample |= 0xFFFF0000;
-        }
-        
-        sample = Math.round(sample * amplificationFactor); 
-        sample = Math.min(32767, Math.max(-32768, sample));
-        
-        if (isBigEndian) {
-            modifiedData[index] = (byte) (sample >> 8);
-            modifiedData[index + 1] = (byte) sample;
-        } else {
-            modifiedData[index] = (byte) sample;
-            modifiedData[index + 1] = (byte) (sample >> 8);
-        }
-    }
-    
-    private void processSample24Bit(byte[] audioData, byte[] modifiedData, int index, float amplificationFactor) {
-        int sample;
-        if (isBigEndian) {
-            sample = (audioData[index] << 16) | ((audioData[index + 1] & 0xFF) << 8) | (audioData[index + 2] & 0xFF);
-        } else {
-            sample = (audioData[index + 2] << 16) | ((audioData[index + 1] & 0xFF) << 8) | (audioData[index] & 0xFF);
-        }
-        
-        if ((sample & 0x800000) != 0) {
-            sample |= 0xFF000000;
-        }
-        
-        sample = Math.round(sample * amplificationFactor); 
-        sample = Math.min(8388607, Math.max(-8388608, sample));
-        
-        if (isBigEndian) {
-            modifiedData[index] = (byte) (sample >> 16);
-            modifiedData[index + 1] = (byte) (sample >> 8);
-            modifiedData[index + 2] = (byte) sample;
-        } else {
-            modifiedData[index] = (byte) sample;
-            modifiedData[index + 1] = (byte) (sample >> 8);
-            modifiedData[index + 2] = (byte) (sample >> 16);
-        }
-    }
-}
\ No newline at end of file
+}
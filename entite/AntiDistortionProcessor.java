@@ -6,94 +6,524 @@ import java.nio.ByteOrder;
 
 import javax.sound.sampled.AudioFormat;
 
+import util.FastTanh;
+
 
 public class AntiDistortionProcessor {
     
+    // EXACT uses Math.tanh; PADE and LOOKUP_TABLE trade accuracy for speed,
+    // see FastTanh.MAX_PADE_ERROR and FastTanh.MAX_TABLE_ERROR.
+    public enum TanhApproximation { EXACT, PADE, LOOKUP_TABLE }
     
     private float threshold = 0.7f;
     private float ratio = 4.0f;
     private float makeupGain = 1.0f;
     private boolean useTanhSoftClipper = true;
+    private TanhApproximation tanhApproximation = TanhApproximation.EXACT;
+    private int oversamplingFactor = 1;
     
     private static final int LOOK_AHEAD_MS = 5; 
-    private int lookAheadSamples;
     
-    private float[] lookAheadBuffer;
-    private int bufferSize = 1024; 
+    // Compressed output level (gain * peak) versus over-threshold level, linearly
+    // interpolated; the level curve is smoother than the gain itself. Peaks above
+    // the table range (overThreshold > 1 - threshold) use the exact curve.
+    // Max abs gain error vs the exact curve: MAX_GAIN_TABLE_ERROR. The gain is
+    // the level divided by a peak of at least threshold, so the table is sized
+    // for a level error of MAX_GAIN_TABLE_ERROR * threshold; settings needing
+    // more than MAX_GAIN_TABLE_SIZE intervals use the exact curve instead.
+    public static final float MAX_GAIN_TABLE_ERROR = 1.0e-4f;
+    private static final int MIN_GAIN_TABLE_SIZE = 1024;
+    private static final int MAX_GAIN_TABLE_SIZE = 1 << 20;
+    private boolean useGainCurveTable = false;
+    // One entry per interval, plus one past the end for interpolation.
+    private float[] gainTable;
+    private float gainTableScale;
+    
+    private volatile EnvelopeCache envelopeCache;
+    // Null allocates every buffer afresh.
+    private BufferPool bufferPool = null;
     
     public AntiDistortionProcessor() {
-        lookAheadBuffer = null;
     }
     
     public void setParameters(float threshold, float ratio, float makeupGain) {
         this.threshold = threshold;
         this.ratio = ratio;
         this.makeupGain = makeupGain;
+        rebuildGainTable();
     }
     
     public void setUseTanhSoftClipper(boolean useTanh) {
         this.useTanhSoftClipper = useTanh;
     }
     
+    public void setTanhApproximation(TanhApproximation approximation) {
+        this.tanhApproximation = approximation;
+    }
+    
+    public TanhApproximation getTanhApproximation() {
+        return tanhApproximation;
+    }
+    
+    // The returned buffer is leased from pool; the caller may release it to
+    // the pool once done with it.
+    public void setBufferPool(BufferPool pool) {
+        this.bufferPool = pool;
+    }
+    
+    private byte[] leaseBytes(int length) {
+        return bufferPool != null ? bufferPool.leaseBytes(length) : new byte[length];
+    }
+    
+    // 1 works on sample values only; 2 and 4 detect and clip true peaks on a
+    // half-band oversampled signal, trading speed for less aliasing.
+    public void setOversamplingFactor(int factor) {
+        if (factor != 1 && factor != 2 && factor != 4) {
+            throw new IllegalArgumentException("Unsupported oversampling factor: " + factor);
+        }
+        this.oversamplingFactor = factor;
+    }
+    
+    public int getOversamplingFactor() {
+        return oversamplingFactor;
+    }
+    
+    public void setUseGainCurveTable(boolean useTable) {
+        this.useGainCurveTable = useTable;
+        rebuildGainTable();
+    }
+    
+    public boolean isUsingGainCurveTable() {
+        return useGainCurveTable;
+    }
+    
+    private void rebuildGainTable() {
+        if (!useGainCurveTable) {
+            gainTable = null;
+            return;
+        }
+        
+        float range = Math.max(1.0f - threshold, 1e-3f);
+        int size = gainTableSize(range);
+        if (size < 0) {
+            gainTable = null;
+            return;
+        }
+        float[] table = new float[size + 2];
+        for (int i = 0; i < table.length; i++) {
+            float maxValue = threshold + (float) ((double) i * range / size);
+            table[i] = calculateGain(maxValue) * maxValue;
+        }
+        gainTableScale = size / range;
+        gainTable = table;
+    }
+    
+    // The fewest power-of-two intervals over range that keep the interpolated
+    // gain within MAX_GAIN_TABLE_ERROR, or -1 if more than MAX_GAIN_TABLE_SIZE
+    // would be needed. Below the ratio cap the level is threshold + x / (ratio
+    // * (1 + 2x)), whose second derivative is at most 4 / ratio, so an interval
+    // h errs by at most h^2 / (2 * ratio). Where the ratio reaches its cap of
+    // 20 the slope jumps by up to 1/20 - ratio/400, adding h * jump / 4 in the
+    // interval that holds the corner.
+    private int gainTableSize(float range) {
+        if (ratio <= 0 || threshold <= 0) {
+            return -1;
+        }
+        double maxLevelError = (double) MAX_GAIN_TABLE_ERROR * threshold;
+        double curvature = ratio < 20.0f ? 4.0 / ratio : 0.0;
+        double corner = (20.0 / ratio - 1.0) / 2.0;
+        double slopeJump = corner > 0 && corner < range ? 1.0 / 20.0 - ratio / 400.0 : 0.0;
+        for (int size = MIN_GAIN_TABLE_SIZE; size <= MAX_GAIN_TABLE_SIZE; size *= 2) {
+            double h = (double) range / size;
+            if (h * h * curvature / 8.0 + h * slopeJump / 4.0 <= maxLevelError) {
+                return size;
+            }
+        }
+        return -1;
+    }
+    
    
     public byte[] processAudio(byte[] audioData, AudioFormat format) {
+        return processAudio(audioData, format, null);
+    }
+    
+    public byte[] processAudio(byte[] audioData, AudioFormat format, BlockPeakIndex peakIndex) {
+        return processAudio(audioData, format, peakIndex, null);
+    }
+    
+    // peakIndex, when given, must bound the peaks of audioData; blocks whose
+    // look-ahead window stays below the threshold skip the envelope entirely.
+    // outputPeaks, when given, receives the peaks of the returned audio.
+    // The decoded and oversampled working copies are SampleBuffers, processed a
+    // block at a time, so only the input and the returned array are on the heap.
+    public byte[] processAudio(byte[] audioData, AudioFormat format, BlockPeakIndex peakIndex,
+                               PeakAccumulator outputPeaks) {
         if (audioData == null) {
             return null;
         }
         
-        int sampleRate = (int) format.getSampleRate();
-        lookAheadSamples = (sampleRate * LOOK_AHEAD_MS) / 1000;
+        int lookAheadSamples = getLookAheadSamples(format.getSampleRate());
         
         int numChannels = format.getChannels();
         
-        float[][] samples = convertToFloatSamples(audioData, format);
-        
-        for (int channel = 0; channel < numChannels; channel++) {
-            processChannelWithLookAhead(samples[channel]);
+        int factor = oversamplingFactor;
+        EnvelopeCache cache = envelopeCache;
+        if (cache != null && cache.matches(audioData, format, factor)) {
+            byte[] processed = applyCachedEnvelope(cache, lookAheadSamples, outputPeaks);
+            if (processed != null) {
+                return processed;
+            }
         }
+        replaceEnvelopeCache(new EnvelopeCache(audioData, format, factor));
         
-        return convertToByteArray(samples, format);
+        int frames = audioData.length / format.getFrameSize();
+        try (SampleBuffer.Arena arena = SampleBuffer.Arena.forBytes(workingBytes(numChannels, frames, factor))) {
+            SampleBuffer samples = convertToFloatSamples(audioData, format, arena);
+            
+            if (factor > 1) {
+                SampleBuffer oversampled = arena.allocate(1, (long) frames * factor);
+                SampleBuffer[] stages = allocateStages(arena, frames, factor);
+                for (int channel = 0; channel < numChannels; channel++) {
+                    processChannelOversampled(samples, channel, oversampled, stages, lookAheadSamples * factor);
+                }
+                return convertToByteArray(samples, format, outputPeaks);
+            }
+            
+            if (peakIndex == null || peakIndex.getNumFrames() != frames
+                    || peakIndex.getNumChannels() != numChannels) {
+                peakIndex = BlockPeakIndex.fromAudioData(audioData, format);
+            }
+            
+            for (int channel = 0; channel < numChannels; channel++) {
+                processChannel(samples, channel, peakIndex, lookAheadSamples);
+            }
+            
+            return convertToByteArray(samples, format, outputPeaks);
+        }
     }
     
-   
-    private void processChannelWithLookAhead(float[] samples) {
-        if (lookAheadBuffer == null || lookAheadBuffer.length < samples.length + lookAheadSamples) {
-            lookAheadBuffer = new float[samples.length + lookAheadSamples];
+    // Decoded planar samples plus, when oversampling, one channel at the
+    // oversampled rate and the intermediate stages.
+    private static long workingBytes(int numChannels, long frames, int factor) {
+        long oversampled = factor > 1 ? 2L * factor - 2 : 0;
+        return (numChannels + oversampled) * frames * Float.BYTES;
+    }
+    
+    // One-channel buffers for the rates between 1x and factor, exclusive.
+    private static SampleBuffer[] allocateStages(SampleBuffer.Arena arena, long frames, int factor) {
+        SampleBuffer[] stages = new SampleBuffer[Math.max(0, Integer.numberOfTrailingZeros(factor) - 1)];
+        for (int stage = 0; stage < stages.length; stage++) {
+            stages[stage] = arena.allocate(1, frames << (stage + 1));
+        }
+        return stages;
+    }
+    
+    // The first call for a given input array runs the normal path; a repeat call
+    // with the same array (a parameter tweak) decodes it once more and keeps the
+    // decoded samples and their peak envelope off the heap, so later calls only
+    // re-run the gain computer and clipper. Callers that modify an input array in place
+    // must invalidate the cache.
+    public void invalidateEnvelopeCache() {
+        replaceEnvelopeCache(null);
+    }
+    
+    private void replaceEnvelopeCache(EnvelopeCache cache) {
+        EnvelopeCache previous = envelopeCache;
+        envelopeCache = cache;
+        if (previous != null) {
+            previous.release();
+        }
+    }
+    
+    // Null when the cache was released meanwhile.
+    private byte[] applyCachedEnvelope(EnvelopeCache cache, int lookAheadSamples, PeakAccumulator outputPeaks) {
+        synchronized (cache) {
+            if (cache.released) {
+                return null;
+            }
+            if (cache.samples == null) {
+                cache.build(lookAheadSamples);
+            }
+            
+            int numChannels = cache.samples.getNumChannels();
+            long length = cache.samples.getNumFrames();
+            int factor = cache.factor;
+            try (SampleBuffer.Arena arena = SampleBuffer.Arena.forBytes(workingBytes(numChannels, cache.frames, factor))) {
+                SampleBuffer output = arena.allocate(numChannels, cache.frames);
+                SampleBuffer processed = factor > 1 ? arena.allocate(1, length) : output;
+                SampleBuffer[] stages = allocateStages(arena, cache.frames, factor);
+                float[] source = new float[SampleBuffer.BLOCK_FRAMES];
+                float[] envelope = new float[SampleBuffer.BLOCK_FRAMES];
+                for (int channel = 0; channel < numChannels; channel++) {
+                    int processedChannel = factor > 1 ? 0 : channel;
+                    for (long start = 0; start < length; start += SampleBuffer.BLOCK_FRAMES) {
+                        int count = (int) Math.min(SampleBuffer.BLOCK_FRAMES, length - start);
+                        cache.samples.get(channel, start, source, 0, count);
+                        cache.envelopes.get(channel, start, envelope, 0, count);
+                        for (int i = 0; i < count; i++) {
+                            source[i] = processSample(source[i], envelope[i]);
+                        }
+                        processed.put(processedChannel, start, source, 0, count);
+                    }
+                    
+                    if (factor > 1) {
+                        HalfBandFilter.downsample(processed, 0, output, channel, stages);
+                    }
+                }
+                
+                return convertToByteArray(output, cache.format, outputPeaks);
+            }
+        }
+    }
+    
+    // The decoded (and oversampled) input and its envelope live off the heap:
+    // they are kept between renders and would otherwise sit in the old
+    // generation at twice the size of the decoded file, or more oversampled.
+    // Past SampleBuffer.Arena.DIRECT_LIMIT they go to a temporary file instead.
+    private static final class EnvelopeCache {
+        private final byte[] input;
+        private final AudioFormat format;
+        private final int factor;
+        private int frames;
+        private SampleBuffer.Arena arena;
+        private SampleBuffer samples;
+        private SampleBuffer envelopes;
+        private boolean released;
+        
+        EnvelopeCache(byte[] input, AudioFormat format, int factor) {
+            this.input = input;
+            this.format = format;
+            this.factor = factor;
+        }
+        
+        boolean matches(byte[] audioData, AudioFormat audioFormat, int oversampling) {
+            return input == audioData && factor == oversampling && format.matches(audioFormat);
+        }
+        
+        void build(int lookAheadSamples) {
+            int numChannels = format.getChannels();
+            frames = input.length / format.getFrameSize();
+            long length = (long) frames * factor;
+            arena = SampleBuffer.Arena.forBytes(2 * numChannels * length * Float.BYTES);
+            envelopes = arena.allocate(numChannels, length);
+            if (factor > 1) {
+                samples = arena.allocate(numChannels, length);
+                // The decoded samples and the stages below factor.
+                try (SampleBuffer.Arena scratch = SampleBuffer.Arena.forBytes(workingBytes(numChannels, frames, factor / 2))) {
+                    SampleBuffer decoded = convertToFloatSamples(input, format, scratch);
+                    SampleBuffer[] stages = allocateStages(scratch, frames, factor);
+                    for (int channel = 0; channel < numChannels; channel++) {
+                        HalfBandFilter.upsample(decoded, channel, samples, channel, stages);
+                    }
+                }
+            } else {
+                samples = convertToFloatSamples(input, format, arena);
+            }
+            for (int channel = 0; channel < numChannels; channel++) {
+                computePeakEnvelope(samples, channel, lookAheadSamples * factor, envelopes);
+            }
         }
         
-        System.arraycopy(samples, 0, lookAheadBuffer, 0, samples.length);
-        for (int i = 0; i < lookAheadSamples; i++) {
-            lookAheadBuffer[samples.length + i] = 0.0f; 
+        synchronized void release() {
+            released = true;
+            if (arena != null) {
+                arena.close();
+            }
         }
+    }
+    
+    public void processChannel(float[] samples, float sampleRate) {
+        int lookAheadSamples = getLookAheadSamples(sampleRate);
+        if (oversamplingFactor > 1) {
+            processChannelOversampled(samples, oversamplingFactor, lookAheadSamples);
+        } else {
+            AntiDistortionStream.processRange(this, samples, 0, samples.length, lookAheadSamples);
+        }
+    }
+    
+    // Sample-domain peaks can't see inter-sample overs, so the block bypass is not used here.
+    private void processChannelOversampled(float[] samples, int factor, int lookAheadSamples) {
+        float[] oversampled = HalfBandFilter.upsample(samples, factor);
+        AntiDistortionStream.processRange(this, oversampled, 0, oversampled.length, lookAheadSamples * factor);
+        HalfBandFilter.downsample(oversampled, factor, samples);
+    }
+    
+    // One channel of samples in place, through oversampled and stages.
+    private void processChannelOversampled(SampleBuffer samples, int channel, SampleBuffer oversampled,
+                                           SampleBuffer[] stages, int lookAheadSamples) {
+        HalfBandFilter.upsample(samples, channel, oversampled, 0, stages);
+        float[] input = new float[SampleBuffer.BLOCK_FRAMES];
+        float[] output = new float[SampleBuffer.BLOCK_FRAMES];
+        AntiDistortionStream.processRange(this, oversampled, 0, 0, oversampled.getNumFrames(), lookAheadSamples,
+                input, output);
+        HalfBandFilter.downsample(oversampled, 0, samples, channel, stages);
+    }
+    
+    private void processChannel(SampleBuffer samples, int channel, BlockPeakIndex peakIndex, int lookAheadSamples) {
+        int blockSize = BlockPeakIndex.BLOCK_SIZE;
+        int length = (int) samples.getNumFrames();
+        int runStart = -1;
+        float[] block = new float[blockSize];
+        float[] input = new float[SampleBuffer.BLOCK_FRAMES];
+        float[] output = new float[SampleBuffer.BLOCK_FRAMES];
         
-        for (int i = 0; i < samples.length; i++) {
-            float maxValue = Math.abs(lookAheadBuffer[i]);
-            for (int j = 1; j <= lookAheadSamples; j++) {
-                float value = Math.abs(lookAheadBuffer[i + j]);
-                if (value > maxValue) {
-                    maxValue = value;
+        for (int blockStart = 0; blockStart < length; blockStart += blockSize) {
+            int blockEnd = Math.min(length, blockStart + blockSize);
+            boolean quiet = peakIndex.isBelow(channel, blockStart, blockEnd + lookAheadSamples, threshold);
+            
+            if (!quiet) {
+                if (runStart < 0) {
+                    runStart = blockStart;
                 }
+                continue;
+            }
+            
+            if (runStart >= 0) {
+                AntiDistortionStream.processRange(this, samples, channel, runStart, blockStart, lookAheadSamples,
+                        input, output);
+                runStart = -1;
+            }
+            
+            int count = blockEnd - blockStart;
+            samples.get(channel, blockStart, block, 0, count);
+            for (int i = 0; i < count; i++) {
+                block[i] = processSample(block[i], 0.0f);
+            }
+            samples.put(channel, blockStart, block, 0, count);
+        }
+        
+        if (runStart >= 0) {
+            AntiDistortionStream.processRange(this, samples, channel, runStart, length, lookAheadSamples,
+                    input, output);
+        }
+    }
+    
+    public AntiDistortionStream createStream(AudioFormat format) {
+        return new AntiDistortionStream(this, format.getChannels(), getLookAheadSamples(format.getSampleRate()));
+    }
+    
+    // Frames either side of a range that affect its output: the look-ahead,
+    // plus the half-band filters at each oversampling stage.
+    public int getLatencyFrames(AudioFormat format) {
+        int stages = Integer.numberOfTrailingZeros(oversamplingFactor);
+        return getLookAheadSamples(format.getSampleRate()) + stages * HalfBandFilter.LENGTH;
+    }
+    
+    public static int getLookAheadSamples(float sampleRate) {
+        return ((int) sampleRate * LOOK_AHEAD_MS) / 1000;
+    }
+    
+    float processSample(float sample, float maxValue) {
+        float gain = 1.0f;
+        if (maxValue > threshold) {
+            gain = gainTable != null ? lookupGain(maxValue) : calculateGain(maxValue);
+        }
+        
+        float processedSample = sample * gain * makeupGain;
+        
+        if (useTanhSoftClipper) {
+            processedSample = applyTanhSoftClipper(processedSample);
+        } else {
+            processedSample = Math.max(-1.0f, Math.min(1.0f, processedSample));
+        }
+        
+        return processedSample;
+    }
+    
+    // envelope[i] = max |samples[i..i+lookAhead]|, computed with a monotonic deque
+    // of candidate indices so each sample is pushed and popped at most once.
+    public static void computePeakEnvelope(float[] samples, int length, int lookAhead, float[] envelope) {
+        int[] deque = new int[lookAhead + 1];
+        int head = 0;
+        int size = 0;
+        int next = 0;
+        
+        for (int i = 0; i < length; i++) {
+            if (size > 0 && deque[head] < i) {
+                head = (head + 1) % deque.length;
+                size--;
             }
             
-            float gain = 1.0f;
-            if (maxValue > threshold) {
-                float overThreshold = maxValue - threshold;
-                float compressionFactor = calculateDynamicCurve(overThreshold);
-                gain = (threshold + (overThreshold / compressionFactor)) / maxValue;
+            int windowEnd = Math.min(length - 1, i + lookAhead);
+            while (next <= windowEnd) {
+                float value = Math.abs(samples[next]);
+                while (size > 0 && Math.abs(samples[deque[(head + size - 1) % deque.length]]) <= value) {
+                    size--;
+                }
+                deque[(head + size) % deque.length] = next;
+                size++;
+                next++;
             }
             
-            float processedSample = lookAheadBuffer[i] * gain * makeupGain;
+            envelope[i] = Math.abs(samples[deque[head]]);
+        }
+    }
+    
+    // The same envelope for a channel of a buffer, read and written a block at
+    // a time; the deque holds the candidates' peaks, as their samples may have
+    // left the current block.
+    static void computePeakEnvelope(SampleBuffer samples, int channel, int lookAhead, SampleBuffer envelope) {
+        long length = samples.getNumFrames();
+        long[] dequeIndex = new long[lookAhead + 1];
+        float[] dequePeak = new float[lookAhead + 1];
+        int head = 0;
+        int size = 0;
+        long next = 0;
+        float[] input = new float[SampleBuffer.BLOCK_FRAMES];
+        long inputStart = 0;
+        int inputCount = 0;
+        float[] output = new float[SampleBuffer.BLOCK_FRAMES];
+        int outputCount = 0;
+        
+        for (long i = 0; i < length; i++) {
+            if (size > 0 && dequeIndex[head] < i) {
+                head = (head + 1) % dequeIndex.length;
+                size--;
+            }
             
-            if (useTanhSoftClipper) {
-                processedSample = applyTanhSoftClipper(processedSample);
-            } else {
-                processedSample = Math.max(-1.0f, Math.min(1.0f, processedSample));
+            long windowEnd = Math.min(length - 1, i + lookAhead);
+            while (next <= windowEnd) {
+                if (next == inputStart + inputCount) {
+                    inputStart = next;
+                    inputCount = (int) Math.min(input.length, length - next);
+                    samples.get(channel, inputStart, input, 0, inputCount);
+                }
+                float value = Math.abs(input[(int) (next - inputStart)]);
+                while (size > 0 && dequePeak[(head + size - 1) % dequePeak.length] <= value) {
+                    size--;
+                }
+                int slot = (head + size) % dequeIndex.length;
+                dequeIndex[slot] = next;
+                dequePeak[slot] = value;
+                size++;
+                next++;
             }
             
-            samples[i] = processedSample;
+            output[outputCount++] = dequePeak[head];
+            if (outputCount == output.length || i == length - 1) {
+                envelope.put(channel, i + 1 - outputCount, output, 0, outputCount);
+                outputCount = 0;
+            }
         }
     }
     
+    private float calculateGain(float maxValue) {
+        float overThreshold = maxValue - threshold;
+        float compressionFactor = calculateDynamicCurve(overThreshold);
+        return (threshold + (overThreshold / compressionFactor)) / maxValue;
+    }
+    
+    private float lookupGain(float maxValue) {
+        float[] table = gainTable;
+        float position = (maxValue - threshold) * gainTableScale;
+        if (position >= table.length - 2) {
+            return calculateGain(maxValue);
+        }
+        int index = (int) position;
+        float fraction = position - index;
+        return (table[index] + (table[index + 1] - table[index]) * fraction) / maxValue;
+    }
+    
     private float calculateDynamicCurve(float overThreshold) {
         float baseRatio = ratio;
         float dynamicRatio = baseRatio * (1.0f + (overThreshold * 2.0f));
@@ -104,15 +534,24 @@ public class AntiDistortionProcessor {
     private float applyTanhSoftClipper(float sample) {
         float drive = 1.5f; 
         
-        return (float) Math.tanh(sample * drive) / drive;
+        switch (tanhApproximation) {
+            case PADE:
+                return FastTanh.pade(sample * drive) / drive;
+            case LOOKUP_TABLE:
+                return FastTanh.table(sample * drive) / drive;
+            default:
+                return (float) Math.tanh(sample * drive) / drive;
+        }
     }
     
-    private float[][] convertToFloatSamples(byte[] audioData, AudioFormat format) {
+    // Planar samples in a buffer from arena, decoded a block at a time.
+    private static SampleBuffer convertToFloatSamples(byte[] audioData, AudioFormat format, SampleBuffer.Arena arena) {
         int bytesPerSample = format.getSampleSizeInBits() / 8;
         int numChannels = format.getChannels();
         int samplesPerChannel = audioData.length / (bytesPerSample * numChannels);
         
-        float[][] samples = new float[numChannels][samplesPerChannel];
+        SampleBuffer samples = arena.allocate(numChannels, samplesPerChannel);
+        float[][] block = new float[numChannels][SampleBuffer.BLOCK_FRAMES];
         
         ByteBuffer bb = ByteBuffer.wrap(audioData);
         if (format.isBigEndian()) {
@@ -121,24 +560,20 @@ public class AntiDistortionProcessor {
             bb.order(ByteOrder.LITTLE_ENDIAN);
         }
         
-        for (int i = 0; i < samplesPerChannel; i++) {
-            for (int channel = 0; channel < numChannels; channel++) {
-                int sampleIndex = i * numChannels + channel;
-                
-                if (bytesPerSample == 1) {
-                    int byteIndex = sampleIndex;
-                    if (byteIndex < audioData.length) {
-                        samples[channel][i] = ((audioData[byteIndex] & 0xFF) - 128) / 128.0f;
-                    }
-                } else if (bytesPerSample == 2) {
-                    int byteIndex = sampleIndex * 2;
-                    if (byteIndex + 1 < audioData.length) {
-                        short shortSample = bb.getShort(byteIndex);
-                        samples[channel][i] = shortSample / 32768.0f;
-                    }
-                } else if (bytesPerSample == 3) {
-                    int byteIndex = sampleIndex * 3;
-                    if (byteIndex + 2 < audioData.length) {
+        for (int start = 0; start < samplesPerChannel; start += SampleBuffer.BLOCK_FRAMES) {
+            int count = Math.min(SampleBuffer.BLOCK_FRAMES, samplesPerChannel - start);
+            for (int k = 0; k < count; k++) {
+                int i = start + k;
+                for (int channel = 0; channel < numChannels; channel++) {
+                    int sampleIndex = i * numChannels + channel;
+                    
+                    if (bytesPerSample == 1) {
+                        block[channel][k] = ((audioData[sampleIndex] & 0xFF) - 128) / 128.0f;
+                    } else if (bytesPerSample == 2) {
+                        short shortSample = bb.getShort(sampleIndex * 2);
+                        block[channel][k] = shortSample / 32768.0f;
+                    } else if (bytesPerSample == 3) {
+                        int byteIndex = sampleIndex * 3;
                         int intSample;
                         if (format.isBigEndian()) {
                             intSample = ((audioData[byteIndex] & 0xFF) << 16) | 
@@ -152,21 +587,23 @@ public class AntiDistortionProcessor {
                         if ((intSample & 0x800000) != 0) {
                             intSample |= 0xFF000000;
                         }
-                        samples[channel][i] = intSample / 8388608.0f;
+                        block[channel][k] = intSample / 8388608.0f;
                     }
                 }
             }
+            samples.writeFrames(start, block, 0, count);
         }
         
         return samples;
     }
     
-    private byte[] convertToByteArray(float[][] samples, AudioFormat format) {
+    private byte[] convertToByteArray(SampleBuffer samples, AudioFormat format, PeakAccumulator outputPeaks) {
         int bytesPerSample = format.getSampleSizeInBits() / 8;
         int numChannels = format.getChannels();
-        int samplesPerChannel = samples[0].length;
+        int samplesPerChannel = (int) samples.getNumFrames();
         
-        byte[] audioData = new byte[samplesPerChannel * numChannels * bytesPerSample];
+        byte[] audioData = leaseBytes(samplesPerChannel * numChannels * bytesPerSample);
+        float[][] block = new float[numChannels][SampleBuffer.BLOCK_FRAMES];
         
         ByteBuffer bb = ByteBuffer.wrap(audioData);
         if (format.isBigEndian()) {
@@ -175,32 +612,46 @@ public class AntiDistortionProcessor {
             bb.order(ByteOrder.LITTLE_ENDIAN);
         }
         
-        for (int i = 0; i < samplesPerChannel; i++) {
-            for (int channel = 0; channel < numChannels; channel++) {
-                int sampleIndex = i * numChannels + channel;
-                float floatSample = samples[channel][i];
-                
-                if (bytesPerSample == 1) {
-                    int sample = Math.round(floatSample * 128.0f) + 128;
-                    sample = Math.min(255, Math.max(0, sample));
-                    audioData[sampleIndex] = (byte) sample;
-                } else if (bytesPerSample == 2) {
-                    int sample = Math.round(floatSample * 32768.0f);
-                    sample = Math.min(32767, Math.max(-32768, sample));
-                    bb.putShort(sampleIndex * 2, (short) sample);
-                } else if (bytesPerSample == 3) {
-                    int sample = Math.round(floatSample * 8388608.0f);
-                    sample = Math.min(8388607, Math.max(-8388608, sample));
+        for (int start = 0; start < samplesPerChannel; start += SampleBuffer.BLOCK_FRAMES) {
+            int count = Math.min(SampleBuffer.BLOCK_FRAMES, samplesPerChannel - start);
+            samples.readFrames(start, block, 0, count);
+            for (int k = 0; k < count; k++) {
+                int i = start + k;
+                for (int channel = 0; channel < numChannels; channel++) {
+                    int sampleIndex = i * numChannels + channel;
+                    float floatSample = block[channel][k];
                     
-                    int byteIndex = sampleIndex * 3;
-                    if (format.isBigEndian()) {
-                        audioData[byteIndex] = (byte) (sample >> 16);
-                        audioData[byteIndex + 1] = (byte) (sample >> 8);
-                        audioData[byteIndex + 2] = (byte) sample;
-                    } else {
-                        audioData[byteIndex] = (byte) sample;
-                        audioData[byteIndex + 1] = (byte) (sample >> 8);
-                        audioData[byteIndex + 2] = (byte) (sample >> 16);
+                    if (bytesPerSample == 1) {
+                        int sample = Math.round(floatSample * 128.0f);
+                        sample = Math.min(127, Math.max(-128, sample));
+                        audioData[sampleIndex] = (byte) (sample + 128);
+                        if (outputPeaks != null) {
+                            outputPeaks.add(i, sample);
+                        }
+                    } else if (bytesPerSample == 2) {
+                        int sample = Math.round(floatSample * 32768.0f);
+                        sample = Math.min(32767, Math.max(-32768, sample));
+                        bb.putShort(sampleIndex * 2, (short) sample);
+                        if (outputPeaks != null) {
+                            outputPeaks.add(i, sample);
+                        }
+                    } else if (bytesPerSample == 3) {
+                        int sample = Math.round(floatSample * 8388608.0f);
+                        sample = Math.min(8388607, Math.max(-8388608, sample));
+                        if (outputPeaks != null) {
+                            outputPeaks.add(i, sample);
+                        }
+                        
+                        int byteIndex = sampleIndex * 3;
+                        if (format.isBigEndian()) {
+                            audioData[byteIndex] = (byte) (sample >> 16);
+                            audioData[byteIndex + 1] = (byte) (sample >> 8);
+                            audioData[byteIndex + 2] = (byte) sample;
+                        } else {
+                            audioData[byteIndex] = (byte) sample;
+                            audioData[byteIndex + 1] = (byte) (sample >> 8);
+                            audioData[byteIndex + 2] = (byte) (sample >> 16);
+                        }
                     }
                 }
             }
@@ -208,4 +659,5 @@ public class AntiDistortionProcessor {
         
         return audioData;
     }
+
 }
\ No newline at end of file
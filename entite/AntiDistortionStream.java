@@ -0,0 +1,163 @@
+package entite;
+
+
+public class AntiDistortionStream {
+
+    private final AntiDistortionProcessor processor;
+    private final int lookAheadSamples;
+    private final LookAheadChannel[] channels;
+    private long position = 0;
+
+    AntiDistortionStream(AntiDistortionProcessor processor, int numChannels, int lookAheadSamples) {
+        this.processor = processor;
+        this.lookAheadSamples = lookAheadSamples;
+        this.channels = new LookAheadChannel[numChannels];
+        for (int channel = 0; channel < numChannels; channel++) {
+            channels[channel] = new LookAheadChannel(lookAheadSamples);
+        }
+    }
+
+    public int getLatencySamples() {
+        return lookAheadSamples;
+    }
+
+    public int getNumChannels() {
+        return channels.length;
+    }
+
+    // Consumes `length` frames and writes `length` frames delayed by the latency;
+    // the first getLatencySamples() frames of the stream are silence.
+    public void process(float[][] input, int inputOffset, float[][] output, int outputOffset, int length) {
+        for (int k = 0; k < length; k++) {
+            long outputIndex = position - lookAheadSamples;
+            for (int channel = 0; channel < channels.length; channel++) {
+                LookAheadChannel state = channels[channel];
+                state.push(input[channel][inputOffset + k]);
+                output[channel][outputOffset + k] = outputIndex >= 0 ? state.emit(processor, outputIndex) : 0.0f;
+            }
+            position++;
+        }
+    }
+
+    // Drains the delay line: writes the last getLatencySamples() frames of the stream.
+    public void flush(float[][] output, int outputOffset) {
+        for (int k = 0; k < lookAheadSamples; k++) {
+            long outputIndex = position - lookAheadSamples + k;
+            for (int channel = 0; channel < channels.length; channel++) {
+                output[channel][outputOffset + k] = outputIndex >= 0 ? channels[channel].emit(processor, outputIndex) : 0.0f;
+            }
+        }
+        reset();
+    }
+
+    public void reset() {
+        position = 0;
+        for (LookAheadChannel state : channels) {
+            state.clear();
+        }
+    }
+
+    // Processes samples[from, to) in place. Output index i is written once input
+    // i + lookAhead has been read, so the delay line never needs more than
+    // lookAhead + 1 slots. Inputs past `to` are read but left untouched.
+    static void processRange(AntiDistortionProcessor processor, float[] samples, int from, int to, int lookAheadSamples) {
+        LookAheadChannel state = new LookAheadChannel(lookAheadSamples);
+        int inputEnd = (int) Math.min(samples.length, (long) to + lookAheadSamples);
+
+        for (int j = from; j < inputEnd; j++) {
+            state.push(samples[j]);
+            int i = j - lookAheadSamples;
+            if (i >= from) {
+                samples[i] = state.emit(processor, i - from);
+            }
+        }
+
+        for (int i = Math.max(from, inputEnd - lookAheadSamples); i < to; i++) {
+            samples[i] = state.emit(processor, i - from);
+        }
+    }
+
+    // As above for a channel of a buffer, a block at a time through the caller's
+    // input and output scratch arrays, which must be the same length.
+    static void processRange(AntiDistortionProcessor processor, SampleBuffer samples, int channel,
+                             long from, long to, int lookAheadSamples, float[] input, float[] output) {
+        LookAheadChannel state = new LookAheadChannel(lookAheadSamples);
+        long inputEnd = Math.min(samples.getNumFrames(), to + lookAheadSamples);
+
+        for (long start = from; start < inputEnd; start += input.length) {
+            int count = (int) Math.min(input.length, inputEnd - start);
+            samples.get(channel, start, input, 0, count);
+            int produced = 0;
+            for (int k = 0; k < count; k++) {
+                state.push(input[k]);
+                long i = start + k - lookAheadSamples;
+                if (i >= from) {
+                    output[produced++] = state.emit(processor, i - from);
+                }
+            }
+            if (produced > 0) {
+                samples.put(channel, start + count - lookAheadSamples - produced, output, 0, produced);
+            }
+        }
+
+        long i = Math.max(from, inputEnd - lookAheadSamples);
+        while (i < to) {
+            int count = (int) Math.min(output.length, to - i);
+            for (int k = 0; k < count; k++) {
+                output[k] = state.emit(processor, i + k - from);
+            }
+            samples.put(channel, i, output, 0, count);
+            i += count;
+        }
+    }
+
+    private static final class LookAheadChannel {
+        private final float[] delayLine;
+        private final long[] dequeIndex;
+        private final float[] dequePeak;
+        private int dequeHead = 0;
+        private int dequeSize = 0;
+        private long received = 0;
+
+        LookAheadChannel(int lookAheadSamples) {
+            delayLine = new float[lookAheadSamples + 1];
+            dequeIndex = new long[lookAheadSamples + 1];
+            dequePeak = new float[lookAheadSamples + 1];
+        }
+
+        void push(float sample) {
+            int capacity = delayLine.length;
+            long index = received++;
+            delayLine[(int) (index % capacity)] = sample;
+
+            expire(index - capacity + 1);
+
+            float peak = Math.abs(sample);
+            while (dequeSize > 0 && dequePeak[(dequeHead + dequeSize - 1) % capacity] <= peak) {
+                dequeSize--;
+            }
+            int slot = (dequeHead + dequeSize) % capacity;
+            dequeIndex[slot] = index;
+            dequePeak[slot] = peak;
+            dequeSize++;
+        }
+
+        float emit(AntiDistortionProcessor processor, long index) {
+            expire(index);
+            return processor.processSample(delayLine[(int) (index % delayLine.length)], dequePeak[dequeHead]);
+        }
+
+        private void expire(long oldestIndex) {
+            while (dequeSize > 0 && dequeIndex[dequeHead] < oldestIndex) {
+                dequeHead = (dequeHead + 1) % dequeIndex.length;
+                dequeSize--;
+            }
+        }
+
+        void clear() {
+            dequeHead = 0;
+            dequeSize = 0;
+            received = 0;
+        }
+    }
+}
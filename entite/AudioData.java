@@ -6,22 +6,28 @@ import java.util.List;
 import javax.sound.sampled.AudioFormat;
 
 public class AudioData {
-    private byte[] rawAudioData;
-    private float[] normalizedSamples;
+    private SampleStore sampleStore;
+    private EditList editList;
+    private BlockPeakIndex blockPeakIndex;
+    private PeakPyramid peakPyramid;
+    private LoudnessMeter loudness;
     private AudioFormat audioFormat;
-    private float amplificationFactor = 1.0f;
+    private GainEnvelope gainEnvelope = GainEnvelope.constant(1.0f);
     
     private boolean antiDistortionEnabled = false;
     private float distortionThreshold = 0.7f;
     private float distortionRatio = 4.0f;
     private float distortionMakeupGain = 1.0f;
     private boolean useTanhSoftClipper = true;
+    private int oversamplingFactor = 1;
     
     private boolean noiseReductionEnabled = false;
     private float noiseReductionAmount = 0.9f;
     private float noiseFloor = 0.05f;
     private float smoothingFactor = 0.7f;
     
+    private boolean processSelectionOnly = false;
+    
     private List<AudioDataListener> listeners = new ArrayList<>();
     
     public interface AudioDataListener {
@@ -39,15 +45,32 @@ public class AudioData {
         listeners.remove(listener);
     }
     
-    public void setAudioData(byte[] rawData, AudioFormat format, float[] samples) {
-        this.rawAudioData = rawData;
-        this.audioFormat = format;
-        this.normalizedSamples = samples;
+    public void setAudioData(SampleStore samples, BlockPeakIndex peakIndex, PeakPyramid peakPyramid) {
+        this.sampleStore = samples;
+        this.audioFormat = samples != null ? samples.getFormat() : null;
+        this.blockPeakIndex = peakIndex;
+        this.peakPyramid = peakPyramid;
+        this.editList = sampleStore != null ? EditList.of(sampleStore, peakPyramid) : null;
+        this.loudness = null;
+        notifyDataChanged();
+    }
+    
+    // The peaks and block index follow the edits; both are assembled from the
+    // pieces' own peaks, so neither decodes the audio again.
+    public void setEditList(EditList edits) {
+        this.editList = edits;
+        this.peakPyramid = edits.getPeakPyramid();
+        this.blockPeakIndex = BlockPeakIndex.fromPeakPyramid(peakPyramid, audioFormat.getChannels());
+        this.loudness = null;
         notifyDataChanged();
     }
     
     public void setAmplificationFactor(float factor) {
-        this.amplificationFactor = factor;
+        setGainEnvelope(GainEnvelope.constant(factor));
+    }
+    
+    public void setGainEnvelope(GainEnvelope envelope) {
+        this.gainEnvelope = envelope;
         notifyAmplificationChanged();
     }
     
@@ -71,6 +94,22 @@ public class AudioData {
         return useTanhSoftClipper;
     }
     
+    public void setOversamplingFactor(int factor) {
+        this.oversamplingFactor = factor;
+    }
+    
+    public int getOversamplingFactor() {
+        return oversamplingFactor;
+    }
+    
+    public void setProcessSelectionOnly(boolean selectionOnly) {
+        this.processSelectionOnly = selectionOnly;
+    }
+    
+    public boolean isProcessSelectionOnly() {
+        return processSelectionOnly;
+    }
+    
     public void setNoiseReductionEnabled(boolean enabled) {
         this.noiseReductionEnabled = enabled;
         notifyNoiseReductionChanged();
@@ -91,7 +130,7 @@ public class AudioData {
     
     private void notifyAmplificationChanged() {
         for (AudioDataListener listener : listeners) {
-            listener.onAmplificationChanged(amplificationFactor);
+            listener.onAmplificationChanged(getAmplificationFactor());
         }
     }
     
@@ -117,20 +156,45 @@ public class AudioData {
         }
     }
     
-    public byte[] getRawAudioData() {
-        return rawAudioData;
+    // The audio as loaded, in chunks rather than one array so its length has
+    // no 2 GB bound; snapshots of it are copy-on-write and leave it untouched.
+    public SampleStore getSampleStore() {
+        return sampleStore;
+    }
+    
+    // The audio as edited, which processing reads; the sample store stays as loaded.
+    public EditList getEditList() {
+        return editList;
+    }
+    
+    public BlockPeakIndex getBlockPeakIndex() {
+        return blockPeakIndex;
     }
     
-    public float[] getNormalizedSamples() {
-        return normalizedSamples;
+    public PeakPyramid getPeakPyramid() {
+        return peakPyramid;
+    }
+    
+    // Loudness of the unprocessed file, measured on demand; null until then.
+    public LoudnessMeter getLoudness() {
+        return loudness;
+    }
+    
+    public void setLoudness(LoudnessMeter loudness) {
+        this.loudness = loudness;
     }
     
     public AudioFormat getAudioFormat() {
         return audioFormat;
     }
     
+    // Gain at the start of the file; equal to the slider value unless automated.
     public float getAmplificationFactor() {
-        return amplificationFactor;
+        return gainEnvelope.gainAt(0);
+    }
+    
+    public GainEnvelope getGainEnvelope() {
+        return gainEnvelope;
     }
     
     public boolean isAntiDistortionEnabled() {
@@ -166,6 +230,6 @@ public class AudioData {
     }
     
     public boolean hasAudioData() {
-        return rawAudioData != null && rawAudioData.length > 0;
+        return sampleStore != null && sampleStore.getNumFrames() > 0;
     }
 }
\ No newline at end of file
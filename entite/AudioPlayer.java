@@ -0,0 +1,122 @@
+package entite;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+
+import util.AudioUtils;
+
+
+// Streams a FrameSource to a SourceDataLine from its own thread, BLOCK_FRAMES
+// at a time, and publishes the position and each block's peak and RMS to a
+// PlaybackMonitor. Levels are published for the block being heard, not the
+// one just queued: a ring keeps those of every block still in the line's
+// buffer. The loop reuses its buffers, so playback allocates nothing.
+public class AudioPlayer {
+
+    private static final int BLOCK_FRAMES = 1024;
+    private static final int LINE_BLOCKS = 4;
+    private static final long TAIL_POLL_MILLIS = 10;
+
+    private final FrameSource audioData;
+    private final AudioFormat format;
+    private final PlaybackMonitor monitor;
+    private final SourceDataLine line;
+    private final Thread thread;
+    private volatile boolean stopped = false;
+
+    private AudioPlayer(FrameSource audioData, PlaybackMonitor monitor) throws LineUnavailableException {
+        this.audioData = audioData;
+        this.format = audioData.getFormat();
+        this.monitor = monitor;
+        this.line = AudioSystem.getSourceDataLine(format);
+        line.open(format, LINE_BLOCKS * BLOCK_FRAMES * format.getFrameSize());
+        this.thread = new Thread(this::run, "audio-player");
+        thread.setDaemon(true);
+    }
+
+    public static AudioPlayer start(FrameSource audioData, PlaybackMonitor monitor) throws LineUnavailableException {
+        int numChannels = audioData.getFormat().getChannels();
+        if (monitor.getNumChannels() != numChannels) {
+            throw new IllegalArgumentException(
+                    "Monitor has " + monitor.getNumChannels() + " channels, audio has " + numChannels);
+        }
+        AudioPlayer player = new AudioPlayer(audioData, monitor);
+        player.line.start();
+        player.thread.start();
+        return player;
+    }
+
+    public void stop() {
+        stopped = true;
+        line.stop();
+        line.flush();
+    }
+
+    public boolean isRunning() {
+        return thread.isAlive();
+    }
+
+    private void run() {
+        int frameSize = format.getFrameSize();
+        int numChannels = format.getChannels();
+        long numFrames = audioData.getNumFrames();
+        byte[] block = new byte[BLOCK_FRAMES * frameSize];
+        float[][] samples = new float[numChannels][BLOCK_FRAMES];
+        // The blocks the line can hold, plus the one being written into it.
+        int ringBlocks = line.getBufferSize() / block.length + 2;
+        float[][] ringPeak = new float[ringBlocks][numChannels];
+        float[][] ringRms = new float[ringBlocks][numChannels];
+        long lastBlock = -1;
+
+        try {
+            for (long frame = 0; frame < numFrames && !stopped; frame += BLOCK_FRAMES) {
+                int frames = (int) Math.min(BLOCK_FRAMES, numFrames - frame);
+                lastBlock = frame / BLOCK_FRAMES;
+                float[] peak = ringPeak[(int) (lastBlock % ringBlocks)];
+                float[] rms = ringRms[(int) (lastBlock % ringBlocks)];
+                audioData.readBytes(frame, block, 0, frames);
+                AudioUtils.decodeFrames(block, format, 0, samples, 0, frames);
+                for (int channel = 0; channel < numChannels; channel++) {
+                    float[] channelSamples = samples[channel];
+                    float max = 0.0f;
+                    double sum = 0.0;
+                    for (int i = 0; i < frames; i++) {
+                        float value = channelSamples[i];
+                        max = Math.max(max, Math.abs(value));
+                        sum += value * value;
+                    }
+                    peak[channel] = max;
+                    rms[channel] = (float) Math.sqrt(sum / frames);
+                }
+
+                line.write(block, 0, frames * frameSize);
+                publishHeard(ringPeak, ringRms, lastBlock);
+            }
+
+            // Keep the cursor moving while the line plays out what it holds.
+            while (!stopped && line.isActive() && line.getLongFramePosition() < numFrames) {
+                publishHeard(ringPeak, ringRms, lastBlock);
+                Thread.sleep(TAIL_POLL_MILLIS);
+            }
+            if (!stopped) {
+                line.drain();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            line.close();
+            monitor.finish();
+        }
+    }
+
+    // Publishes the line position with the levels of the block it falls in,
+    // clamped to the blocks the ring still holds.
+    private void publishHeard(float[][] ringPeak, float[][] ringRms, long lastBlock) {
+        long position = line.getLongFramePosition();
+        long heard = Math.max(lastBlock - ringPeak.length + 1, Math.min(lastBlock, position / BLOCK_FRAMES));
+        int slot = (int) (Math.max(0, heard) % ringPeak.length);
+        monitor.publish(position, ringPeak[slot], ringRms[slot]);
+    }
+}
@@ -0,0 +1,140 @@
+package entite;
+
+import javax.sound.sampled.AudioFormat;
+
+import util.AudioUtils;
+
+
+public class BlockPeakIndex {
+
+    public static final int BLOCK_SIZE = 256;
+
+    private final float[][] peaks;
+    private final int numFrames;
+
+    private BlockPeakIndex(float[][] peaks, int numFrames) {
+        this.peaks = peaks;
+        this.numFrames = numFrames;
+    }
+
+    public static BlockPeakIndex fromSamples(float[][] samples) {
+        int numChannels = samples.length;
+        int numFrames = numChannels > 0 ? samples[0].length : 0;
+        int numBlocks = (numFrames + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        float[][] peaks = new float[numChannels][numBlocks];
+
+        for (int channel = 0; channel < numChannels; channel++) {
+            float[] channelSamples = samples[channel];
+            float[] channelPeaks = peaks[channel];
+            for (int i = 0; i < numFrames; i++) {
+                float value = Math.abs(channelSamples[i]);
+                if (value > channelPeaks[i / BLOCK_SIZE]) {
+                    channelPeaks[i / BLOCK_SIZE] = value;
+                }
+            }
+        }
+
+        return new BlockPeakIndex(peaks, numFrames);
+    }
+
+    public static BlockPeakIndex fromAudioData(byte[] audioData, AudioFormat format) {
+        int bytesPerSample = format.getSampleSizeInBits() / 8;
+        int numChannels = format.getChannels();
+        int numFrames = audioData.length / (bytesPerSample * numChannels);
+        int numBlocks = (numFrames + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        boolean isBigEndian = format.isBigEndian();
+        float[][] peaks = new float[numChannels][numBlocks];
+
+        for (int i = 0; i < numFrames; i++) {
+            for (int channel = 0; channel < numChannels; channel++) {
+                int byteIndex = (i * numChannels + channel) * bytesPerSample;
+                float value;
+                if (bytesPerSample == 1) {
+                    value = ((audioData[byteIndex] & 0xFF) - 128) / 128.0f;
+                } else if (bytesPerSample == 2) {
+                    int sample = isBigEndian
+                            ? (audioData[byteIndex] << 8) | (audioData[byteIndex + 1] & 0xFF)
+                            : (audioData[byteIndex + 1] << 8) | (audioData[byteIndex] & 0xFF);
+                    value = sample / 32768.0f;
+                } else {
+                    value = AudioUtils.read24BitSample(audioData, byteIndex, isBigEndian) / 8388608.0f;
+                }
+
+                value = Math.abs(value);
+                if (value > peaks[channel][i / BLOCK_SIZE]) {
+                    peaks[channel][i / BLOCK_SIZE] = value;
+                }
+            }
+        }
+
+        return new BlockPeakIndex(peaks, numFrames);
+    }
+
+    // Upper bound from display peaks, which combine the channels, so every
+    // channel gets the same block peaks. Null for audio too long to index,
+    // which no byte[] stage could hold anyway.
+    public static BlockPeakIndex fromPeakPyramid(PeakPyramid pyramid, int numChannels) {
+        if (pyramid.getNumFrames() > Integer.MAX_VALUE) {
+            return null;
+        }
+        int numFrames = (int) pyramid.getNumFrames();
+        int numBlocks = (numFrames + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        float[] baseMin = pyramid.getLevelMin(0);
+        float[] baseMax = pyramid.getLevelMax(0);
+        float[][] peaks = new float[numChannels][numBlocks];
+
+        for (int bucket = 0; bucket < baseMin.length; bucket++) {
+            int block = (int) ((long) bucket * PeakPyramid.BASE_BUCKET / BLOCK_SIZE);
+            if (block < numBlocks) {
+                float value = Math.max(Math.abs(baseMin[bucket]), Math.abs(baseMax[bucket]));
+                peaks[0][block] = Math.max(peaks[0][block], value);
+            }
+        }
+        for (int channel = 1; channel < numChannels; channel++) {
+            peaks[channel] = peaks[0].clone();
+        }
+
+        return new BlockPeakIndex(peaks, numFrames);
+    }
+
+    // Upper bound of the peaks after a gain stage; margin covers the rounding
+    // the stage adds when it writes integer samples back.
+    public BlockPeakIndex scaled(float gain, float margin) {
+        float[][] scaledPeaks = new float[peaks.length][];
+        for (int channel = 0; channel < peaks.length; channel++) {
+            scaledPeaks[channel] = new float[peaks[channel].length];
+            for (int block = 0; block < peaks[channel].length; block++) {
+                scaledPeaks[channel][block] = peaks[channel][block] * Math.abs(gain) + margin;
+            }
+        }
+        return new BlockPeakIndex(scaledPeaks, numFrames);
+    }
+
+    // True when no sample of the channel in [fromFrame, toFrame) can exceed threshold.
+    public boolean isBelow(int channel, int fromFrame, int toFrame, float threshold) {
+        float[] channelPeaks = peaks[channel];
+        int lastBlock = Math.min(channelPeaks.length - 1, (toFrame - 1) / BLOCK_SIZE);
+        for (int block = fromFrame / BLOCK_SIZE; block <= lastBlock; block++) {
+            if (channelPeaks[block] > threshold) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public float getPeak(int channel, int block) {
+        return peaks[channel][block];
+    }
+
+    public int getNumChannels() {
+        return peaks.length;
+    }
+
+    public int getNumBlocks() {
+        return peaks.length > 0 ? peaks[0].length : 0;
+    }
+
+    public int getNumFrames() {
+        return numFrames;
+    }
+}
@@ -0,0 +1,151 @@
+package entite;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+
+// Recycles the full-length arrays a render needs, so re-rendering the same
+// file reuses the previous render's buffers instead of allocating new ones.
+// Callers treat an array's length as the length of its data, so a size class
+// is an element type and an exact length; the buffers of one file fall into a
+// handful of classes. Arrays shorter than MIN_POOLED_LENGTH aren't worth
+// keeping and are neither counted nor retained. Retained buffers are capped
+// at maxRetainedBytes, evicting from the least recently used classes first.
+// Leased arrays hold whatever they last held.
+public final class BufferPool {
+
+    public static final int MIN_POOLED_LENGTH = 1 << 16;
+
+    private static final class SizeClass {
+        final boolean floats;
+        final int length;
+
+        SizeClass(boolean floats, int length) {
+            this.floats = floats;
+            this.length = length;
+        }
+
+        long bytes() {
+            return floats ? (long) length * Float.BYTES : length;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof SizeClass)) {
+                return false;
+            }
+            SizeClass sizeClass = (SizeClass) other;
+            return floats == sizeClass.floats && length == sizeClass.length;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(floats, length);
+        }
+    }
+
+    private final long maxRetainedBytes;
+    // In access order, so the first class is the least recently used.
+    private final LinkedHashMap<SizeClass, ArrayDeque<Object>> classes = new LinkedHashMap<>(16, 0.75f, true);
+    private long retainedBytes;
+    private long allocatedBytes;
+    private long reusedBytes;
+
+    // 0 retains nothing: every lease allocates.
+    public BufferPool(long maxRetainedBytes) {
+        if (maxRetainedBytes < 0) {
+            throw new IllegalArgumentException("Negative pool size: " + maxRetainedBytes);
+        }
+        this.maxRetainedBytes = maxRetainedBytes;
+    }
+
+    public synchronized byte[] leaseBytes(int length) {
+        if (length < MIN_POOLED_LENGTH) {
+            return new byte[length];
+        }
+        byte[] buffer = (byte[]) take(new SizeClass(false, length));
+        return buffer != null ? buffer : new byte[length];
+    }
+
+    public synchronized float[] leaseFloats(int length) {
+        if (length < MIN_POOLED_LENGTH) {
+            return new float[length];
+        }
+        float[] buffer = (float[]) take(new SizeClass(true, length));
+        return buffer != null ? buffer : new float[length];
+    }
+
+    // The caller must not touch buffer afterwards. Null is ignored.
+    public synchronized void release(byte[] buffer) {
+        if (buffer != null) {
+            retain(new SizeClass(false, buffer.length), buffer);
+        }
+    }
+
+    public synchronized void release(float[] buffer) {
+        if (buffer != null) {
+            retain(new SizeClass(true, buffer.length), buffer);
+        }
+    }
+
+    public void release(float[][] buffers) {
+        if (buffers != null) {
+            for (float[] buffer : buffers) {
+                release(buffer);
+            }
+        }
+    }
+
+    // Drops every retained buffer, e.g. when a new file makes their sizes useless.
+    public synchronized void clear() {
+        classes.clear();
+        retainedBytes = 0;
+    }
+
+    // Bytes of arrays allocated because no retained one fitted, since creation.
+    public synchronized long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    // Bytes of leases served from retained arrays, since creation.
+    public synchronized long getReusedBytes() {
+        return reusedBytes;
+    }
+
+    public synchronized long getRetainedBytes() {
+        return retainedBytes;
+    }
+
+    private Object take(SizeClass sizeClass) {
+        ArrayDeque<Object> free = classes.get(sizeClass);
+        if (free == null) {
+            allocatedBytes += sizeClass.bytes();
+            return null;
+        }
+        Object buffer = free.pop();
+        if (free.isEmpty()) {
+            classes.remove(sizeClass);
+        }
+        retainedBytes -= sizeClass.bytes();
+        reusedBytes += sizeClass.bytes();
+        return buffer;
+    }
+
+    private void retain(SizeClass sizeClass, Object buffer) {
+        long bytes = sizeClass.bytes();
+        if (sizeClass.length < MIN_POOLED_LENGTH || bytes > maxRetainedBytes) {
+            return;
+        }
+        Iterator<Map.Entry<SizeClass, ArrayDeque<Object>>> oldest = classes.entrySet().iterator();
+        while (retainedBytes + bytes > maxRetainedBytes) {
+            Map.Entry<SizeClass, ArrayDeque<Object>> entry = oldest.next();
+            retainedBytes -= entry.getKey().bytes() * entry.getValue().size();
+            oldest.remove();
+        }
+        classes.computeIfAbsent(sizeClass, key -> new ArrayDeque<>()).push(buffer);
+        retainedBytes += bytes;
+    }
+}
@@ -0,0 +1,259 @@
+package entite;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.sound.sampled.AudioFormat;
+
+
+// A timeline assembled from pieces of immutable sources: each piece is a run
+// of frames from a SampleStore snapshot, or silence. Edits build a new list
+// from the pieces of the old one and never touch samples, so cut, paste, trim
+// and silence insert cost O(pieces) whatever the length of the audio, and an
+// old list stays valid as an undo state. Reads resolve through the pieces.
+public final class EditList implements FrameSource {
+
+    private static final class Piece {
+        // Both null for silence.
+        final SampleStore source;
+        final PeakPyramid peaks;
+        final long sourceFrame;
+        final long frames;
+
+        Piece(SampleStore source, PeakPyramid peaks, long sourceFrame, long frames) {
+            this.source = source;
+            this.peaks = peaks;
+            this.sourceFrame = sourceFrame;
+            this.frames = frames;
+        }
+
+        Piece slice(long from, long to) {
+            return new Piece(source, peaks, sourceFrame + from, to - from);
+        }
+
+        // True when other carries on exactly where this piece stops.
+        boolean continuedBy(Piece other) {
+            return source == other.source && (source == null || sourceFrame + frames == other.sourceFrame);
+        }
+    }
+
+    private final AudioFormat format;
+    private final Piece[] pieces;
+    // starts[i] is the timeline frame piece i begins on; the last entry is the length.
+    private final long[] starts;
+    private volatile PeakPyramid peakPyramid;
+
+    private EditList(AudioFormat format, List<Piece> pieces) {
+        this.format = format;
+        this.pieces = pieces.toArray(new Piece[0]);
+        this.starts = new long[this.pieces.length + 1];
+        for (int i = 0; i < this.pieces.length; i++) {
+            starts[i + 1] = starts[i] + this.pieces[i].frames;
+        }
+    }
+
+    // One piece over a snapshot of source, so later writes to source don't
+    // show through. peaks describe source; null builds them.
+    public static EditList of(SampleStore source, PeakPyramid peaks) {
+        SampleStore snapshot = source.snapshot();
+        PeakPyramid sourcePeaks = peaks != null ? peaks : PeakPyramid.fromSource(snapshot);
+        List<Piece> pieces = new ArrayList<>();
+        if (snapshot.getNumFrames() > 0) {
+            pieces.add(new Piece(snapshot, sourcePeaks, 0, snapshot.getNumFrames()));
+        }
+        return new EditList(source.getFormat(), pieces);
+    }
+
+    public static EditList silence(AudioFormat format, long frames) {
+        if (frames < 0) {
+            throw new IllegalArgumentException("Negative length: " + frames);
+        }
+        List<Piece> pieces = new ArrayList<>();
+        if (frames > 0) {
+            pieces.add(new Piece(null, null, 0, frames));
+        }
+        return new EditList(format, pieces);
+    }
+
+    @Override
+    public AudioFormat getFormat() {
+        return format;
+    }
+
+    @Override
+    public long getNumFrames() {
+        return starts[pieces.length];
+    }
+
+    public int getNumPieces() {
+        return pieces.length;
+    }
+
+    // Frames [fromFrame, toFrame) as a list of their own, e.g. the clipboard
+    // or a trim.
+    public EditList copy(long fromFrame, long toFrame) {
+        checkRange(fromFrame, toFrame);
+        List<Piece> result = new ArrayList<>();
+        appendRange(result, fromFrame, toFrame);
+        return new EditList(format, result);
+    }
+
+    // Everything but frames [fromFrame, toFrame).
+    public EditList cut(long fromFrame, long toFrame) {
+        checkRange(fromFrame, toFrame);
+        List<Piece> result = new ArrayList<>();
+        appendRange(result, 0, fromFrame);
+        appendRange(result, toFrame, getNumFrames());
+        return new EditList(format, result);
+    }
+
+    // clip inserted before frame atFrame.
+    public EditList paste(long atFrame, EditList clip) {
+        checkRange(atFrame, atFrame);
+        if (!clip.format.matches(format)) {
+            throw new IllegalArgumentException("Cannot paste " + clip.format + " into " + format);
+        }
+        List<Piece> result = new ArrayList<>();
+        appendRange(result, 0, atFrame);
+        clip.appendRange(result, 0, clip.getNumFrames());
+        appendRange(result, atFrame, getNumFrames());
+        return new EditList(format, result);
+    }
+
+    public EditList insertSilence(long atFrame, long frames) {
+        return paste(atFrame, silence(format, frames));
+    }
+
+    // Frames from fromFrame on replaced by region, keeping the length.
+    public EditList replace(long fromFrame, SampleStore region, PeakPyramid regionPeaks) {
+        long toFrame = fromFrame + region.getNumFrames();
+        checkRange(fromFrame, toFrame);
+        return cut(fromFrame, toFrame).paste(fromFrame, of(region, regionPeaks));
+    }
+
+    // Adds the pieces covering [fromFrame, toFrame), merging a piece into the
+    // previous one when it continues it, so undoing a cut by pasting it back
+    // leaves one piece rather than three.
+    private void appendRange(List<Piece> result, long fromFrame, long toFrame) {
+        if (fromFrame >= toFrame) {
+            return;
+        }
+        for (int i = pieceAt(fromFrame); i < pieces.length && starts[i] < toFrame; i++) {
+            long from = Math.max(fromFrame, starts[i]) - starts[i];
+            long to = Math.min(toFrame, starts[i + 1]) - starts[i];
+            Piece piece = pieces[i].slice(from, to);
+            int last = result.size() - 1;
+            if (last >= 0 && result.get(last).continuedBy(piece)) {
+                Piece previous = result.get(last);
+                result.set(last, previous.slice(0, previous.frames + piece.frames));
+            } else {
+                result.add(piece);
+            }
+        }
+    }
+
+    // Index of the piece holding frame, or of the last piece for the end.
+    private int pieceAt(long frame) {
+        int index = Arrays.binarySearch(starts, 0, pieces.length, frame);
+        return index >= 0 ? index : -index - 2;
+    }
+
+    @Override
+    public void readBytes(long frame, byte[] target, int offset, int frames) {
+        checkRange(frame, frame + frames);
+        int frameSize = format.getFrameSize();
+        byte silent = format.getSampleSizeInBits() == 8 ? (byte) 0x80 : 0;
+        int done = 0;
+        for (int i = pieceAt(frame); done < frames; i++) {
+            long within = frame + done - starts[i];
+            int count = (int) Math.min(frames - done, pieces[i].frames - within);
+            int targetIndex = offset + done * frameSize;
+            if (pieces[i].source == null) {
+                Arrays.fill(target, targetIndex, targetIndex + count * frameSize, silent);
+            } else {
+                pieces[i].source.readBytes(pieces[i].sourceFrame + within, target, targetIndex, count);
+            }
+            done += count;
+        }
+    }
+
+    @Override
+    public void readFrames(long frame, float[][] target, int offset, int frames) {
+        checkRange(frame, frame + frames);
+        int done = 0;
+        for (int i = pieceAt(frame); done < frames; i++) {
+            long within = frame + done - starts[i];
+            int count = (int) Math.min(frames - done, pieces[i].frames - within);
+            if (pieces[i].source == null) {
+                for (float[] channel : target) {
+                    Arrays.fill(channel, offset + done, offset + done + count, 0.0f);
+                }
+            } else {
+                pieces[i].source.readFrames(pieces[i].sourceFrame + within, target, offset + done, count);
+            }
+            done += count;
+        }
+    }
+
+    // Display peaks of the timeline, assembled from the peaks of each piece's
+    // source in O(buckets) rather than decoded. A piece that starts off the
+    // bucket grid of its source takes, for each bucket, the extremes of the
+    // source buckets it overlaps, so the bounds can be up to a bucket wide on
+    // either side; views finer than a bucket read the samples exactly.
+    public PeakPyramid getPeakPyramid() {
+        PeakPyramid peaks = peakPyramid;
+        if (peaks == null) {
+            long numFrames = getNumFrames();
+            int numBuckets = PeakPyramid.numBuckets(numFrames);
+            float[] min = new float[numBuckets];
+            float[] max = new float[numBuckets];
+            Arrays.fill(min, Float.MAX_VALUE);
+            Arrays.fill(max, -Float.MAX_VALUE);
+
+            for (int i = 0; i < pieces.length; i++) {
+                Piece piece = pieces[i];
+                long pieceEnd = starts[i + 1];
+                for (long frame = starts[i]; frame < pieceEnd; ) {
+                    int bucket = (int) (frame >> PeakPyramid.BASE_BUCKET_SHIFT);
+                    long end = Math.min(pieceEnd, (long) (bucket + 1) << PeakPyramid.BASE_BUCKET_SHIFT);
+                    long shift = piece.sourceFrame - starts[i];
+                    long runEnd = pieceEnd & -PeakPyramid.BASE_BUCKET;
+                    if (piece.source != null && frame == (long) bucket << PeakPyramid.BASE_BUCKET_SHIFT
+                            && shift % PeakPyramid.BASE_BUCKET == 0 && runEnd > frame) {
+                        // On the source's grid: whole buckets carry over as they are.
+                        int count = (int) ((runEnd - frame) >> PeakPyramid.BASE_BUCKET_SHIFT);
+                        int sourceBucket = (int) ((frame + shift) >> PeakPyramid.BASE_BUCKET_SHIFT);
+                        System.arraycopy(piece.peaks.getLevelMin(0), sourceBucket, min, bucket, count);
+                        System.arraycopy(piece.peaks.getLevelMax(0), sourceBucket, max, bucket, count);
+                        end = runEnd;
+                    } else if (piece.source == null) {
+                        min[bucket] = Math.min(min[bucket], 0.0f);
+                        max[bucket] = Math.max(max[bucket], 0.0f);
+                    } else {
+                        long from = piece.sourceFrame + frame - starts[i];
+                        piece.peaks.bound(from, from + end - frame, min, max, bucket);
+                    }
+                    frame = end;
+                }
+            }
+            for (int bucket = 0; bucket < numBuckets; bucket++) {
+                if (min[bucket] > max[bucket]) {
+                    min[bucket] = 0.0f;
+                    max[bucket] = 0.0f;
+                }
+            }
+
+            peaks = PeakPyramid.fromBaseLevel(this, format, numFrames, min, max);
+            peakPyramid = peaks;
+        }
+        return peaks;
+    }
+
+    private void checkRange(long fromFrame, long toFrame) {
+        if (fromFrame < 0 || toFrame > getNumFrames() || fromFrame > toFrame) {
+            throw new IllegalArgumentException(
+                    "Invalid frame range [" + fromFrame + ", " + toFrame + ") for " + getNumFrames() + " frames");
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package entite;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+
+// A set of frame ranges [from, to), kept sorted with overlapping and touching
+// ranges merged, e.g. the spans of a render that no longer match its input.
+public class FrameRanges {
+
+    private final TreeMap<Long, Long> ranges = new TreeMap<>();
+
+    public void add(long fromFrame, long toFrame) {
+        if (fromFrame >= toFrame) {
+            return;
+        }
+
+        long from = fromFrame;
+        long to = toFrame;
+        Map.Entry<Long, Long> before = ranges.floorEntry(from);
+        if (before != null && before.getValue() >= from) {
+            from = before.getKey();
+            to = Math.max(to, before.getValue());
+        }
+
+        Map.Entry<Long, Long> next = ranges.ceilingEntry(from);
+        while (next != null && next.getKey() <= to) {
+            to = Math.max(to, next.getValue());
+            ranges.remove(next.getKey());
+            next = ranges.ceilingEntry(from);
+        }
+        ranges.put(from, to);
+    }
+
+    public boolean isEmpty() {
+        return ranges.isEmpty();
+    }
+
+    public void clear() {
+        ranges.clear();
+    }
+
+    // { from, to } pairs in order.
+    public List<long[]> getRanges() {
+        List<long[]> result = new ArrayList<>(ranges.size());
+        for (Map.Entry<Long, Long> range : ranges.entrySet()) {
+            result.add(new long[] { range.getKey(), range.getValue() });
+        }
+        return result;
+    }
+}
@@ -0,0 +1,96 @@
+package entite;
+
+import java.io.InputStream;
+
+import javax.sound.sampled.AudioFormat;
+
+
+// Read access to PCM frames by long index, whether they sit in one store or
+// are assembled from pieces of several.
+public interface FrameSource {
+
+    int STREAM_FRAMES = 4096;
+
+    AudioFormat getFormat();
+
+    long getNumFrames();
+
+    void readBytes(long frame, byte[] target, int offset, int frames);
+
+    // Decodes like AudioUtils.decodeFrames.
+    void readFrames(long frame, float[][] target, int offset, int frames);
+
+    // Frames [fromFrame, toFrame) as one array, for stages that take byte[].
+    default byte[] toByteArray(long fromFrame, long toFrame) {
+        return toByteArray(fromFrame, toFrame, null);
+    }
+
+    // As above, in an array leased from pool, or a new one when pool is null.
+    default byte[] toByteArray(long fromFrame, long toFrame, BufferPool pool) {
+        long length = (toFrame - fromFrame) * getFormat().getFrameSize();
+        if (fromFrame < 0 || toFrame > getNumFrames() || fromFrame > toFrame) {
+            throw new IllegalArgumentException(
+                    "Invalid frame range [" + fromFrame + ", " + toFrame + ") for " + getNumFrames() + " frames");
+        }
+        if (length > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Range of " + (toFrame - fromFrame) + " frames does not fit in an array");
+        }
+        byte[] result = pool != null ? pool.leaseBytes((int) length) : new byte[(int) length];
+        readBytes(fromFrame, result, 0, (int) (toFrame - fromFrame));
+        return result;
+    }
+
+    // The PCM bytes from frame 0 on, e.g. for writing the source to a file.
+    default InputStream openStream() {
+        int frameSize = getFormat().getFrameSize();
+        return new InputStream() {
+            private final byte[] buffer = new byte[STREAM_FRAMES * frameSize];
+            private long nextFrame = 0;
+            private int position = 0;
+            private int limit = 0;
+
+            @Override
+            public int read() {
+                if (!fill()) {
+                    return -1;
+                }
+                return buffer[position++] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] target, int offset, int count) {
+                if (count == 0) {
+                    return 0;
+                }
+                if (!fill()) {
+                    return -1;
+                }
+                int n = Math.min(count, limit - position);
+                System.arraycopy(buffer, position, target, offset, n);
+                position += n;
+                return n;
+            }
+
+            @Override
+            public int available() {
+                long remaining = (getNumFrames() - nextFrame) * frameSize + limit - position;
+                return (int) Math.min(Integer.MAX_VALUE, remaining);
+            }
+
+            private boolean fill() {
+                if (position < limit) {
+                    return true;
+                }
+                int frames = (int) Math.min(STREAM_FRAMES, getNumFrames() - nextFrame);
+                if (frames <= 0) {
+                    return false;
+                }
+                readBytes(nextFrame, buffer, 0, frames);
+                nextFrame += frames;
+                position = 0;
+                limit = frames * frameSize;
+                return true;
+            }
+        };
+    }
+}
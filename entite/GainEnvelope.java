@@ -0,0 +1,204 @@
+package entite;
+
+import java.util.Arrays;
+
+
+// Piecewise gain automation over frame positions. Each breakpoint holds its gain
+// until the next one, reached along a linear or exponential segment. Before the
+// first breakpoint and after the last one the gain is held constant.
+public final class GainEnvelope {
+
+    public enum Curve { LINEAR, EXPONENTIAL }
+
+    private final long[] frames;
+    private final float[] gains;
+    private final Curve[] curves;
+
+    private GainEnvelope(long[] frames, float[] gains, Curve[] curves) {
+        this.frames = frames;
+        this.gains = gains;
+        this.curves = curves;
+    }
+
+    public static GainEnvelope constant(float gain) {
+        return new GainEnvelope(new long[] { 0 }, new float[] { gain }, new Curve[] { Curve.LINEAR });
+    }
+
+    // Returns a copy with a breakpoint at frame; `curve` shapes the segment that
+    // leads from this breakpoint to the next one. An existing breakpoint at the
+    // same frame is replaced.
+    public GainEnvelope withBreakpoint(long frame, float gain, Curve curve) {
+        int index = Arrays.binarySearch(frames, frame);
+        if (index >= 0) {
+            float[] newGains = gains.clone();
+            Curve[] newCurves = curves.clone();
+            newGains[index] = gain;
+            newCurves[index] = curve;
+            return new GainEnvelope(frames, newGains, newCurves);
+        }
+
+        int insertAt = -index - 1;
+        long[] newFrames = new long[frames.length + 1];
+        float[] newGains = new float[gains.length + 1];
+        Curve[] newCurves = new Curve[curves.length + 1];
+        System.arraycopy(frames, 0, newFrames, 0, insertAt);
+        System.arraycopy(gains, 0, newGains, 0, insertAt);
+        System.arraycopy(curves, 0, newCurves, 0, insertAt);
+        newFrames[insertAt] = frame;
+        newGains[insertAt] = gain;
+        newCurves[insertAt] = curve;
+        System.arraycopy(frames, insertAt, newFrames, insertAt + 1, frames.length - insertAt);
+        System.arraycopy(gains, insertAt, newGains, insertAt + 1, gains.length - insertAt);
+        System.arraycopy(curves, insertAt, newCurves, insertAt + 1, curves.length - insertAt);
+        return new GainEnvelope(newFrames, newGains, newCurves);
+    }
+
+    // Fade from the current gain at `frame` to `gain` over `length` frames.
+    public GainEnvelope withRamp(long frame, long length, float gain, Curve curve) {
+        return withBreakpoint(frame, gainAt(frame), curve).withBreakpoint(frame + length, gain, curve);
+    }
+
+    // The same automation for a buffer that starts at frame `offset` of this
+    // one: the result's gainAt(f) equals gainAt(offset + f).
+    public GainEnvelope shifted(long offset) {
+        long[] newFrames = new long[frames.length];
+        for (int i = 0; i < frames.length; i++) {
+            newFrames[i] = frames[i] - offset;
+        }
+        return new GainEnvelope(newFrames, gains, curves);
+    }
+
+    // The frames where this and other may give different gains, as
+    // { from, to } with to exclusive, or null if they are the same. Spans the
+    // whole segments on either side of each breakpoint that differs; a change
+    // held before the first or after the last breakpoint reaches
+    // Long.MIN_VALUE or Long.MAX_VALUE.
+    public long[] differingRange(GainEnvelope other) {
+        long first = Long.MAX_VALUE;
+        long last = Long.MIN_VALUE;
+        int i = 0;
+        int j = 0;
+        while (i < frames.length || j < other.frames.length) {
+            long mine = i < frames.length ? frames[i] : Long.MAX_VALUE;
+            long theirs = j < other.frames.length ? other.frames[j] : Long.MAX_VALUE;
+            long frame = Math.min(mine, theirs);
+            boolean same = mine == theirs && gains[i] == other.gains[j] && curves[i] == other.curves[j];
+            if (!same) {
+                first = Math.min(first, frame);
+                last = Math.max(last, frame);
+            }
+            if (mine <= theirs) {
+                i++;
+            }
+            if (theirs <= mine) {
+                j++;
+            }
+        }
+        if (first == Long.MAX_VALUE) {
+            return null;
+        }
+
+        long from = Math.max(breakpointBefore(first), other.breakpointBefore(first));
+        long to = Math.min(breakpointAfter(last), other.breakpointAfter(last));
+        return new long[] { from, to };
+    }
+
+    private long breakpointBefore(long frame) {
+        int index = Arrays.binarySearch(frames, frame);
+        int before = (index >= 0 ? index : -index - 1) - 1;
+        return before >= 0 ? frames[before] : Long.MIN_VALUE;
+    }
+
+    private long breakpointAfter(long frame) {
+        int index = Arrays.binarySearch(frames, frame);
+        int after = index >= 0 ? index + 1 : -index - 1;
+        return after < frames.length ? frames[after] : Long.MAX_VALUE;
+    }
+
+    public boolean isConstant() {
+        for (float gain : gains) {
+            if (gain != gains[0]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public float getMaxGain() {
+        float max = 0.0f;
+        for (float gain : gains) {
+            max = Math.max(max, Math.abs(gain));
+        }
+        return max;
+    }
+
+    public float gainAt(long frame) {
+        int segment = segmentAt(frame);
+        if (segment < 0) {
+            return gains[0];
+        }
+        if (segment == frames.length - 1) {
+            return gains[segment];
+        }
+
+        double position = (double) (frame - frames[segment]) / (frames[segment + 1] - frames[segment]);
+        return interpolate(segment, position);
+    }
+
+    // Writes the gain of frames [startFrame, startFrame + length) into target.
+    // Inside a segment the ramp is built incrementally (an add per frame for
+    // linear, a multiply per frame for exponential) from exact segment values.
+    public void fill(long startFrame, float[] target, int offset, int length) {
+        int written = 0;
+        while (written < length) {
+            long frame = startFrame + written;
+            int segment = segmentAt(frame);
+
+            if (segment < 0 || segment == frames.length - 1) {
+                long holdEnd = segment < 0 ? frames[0] : Long.MAX_VALUE;
+                int count = (int) Math.min(length - written, holdEnd - frame);
+                Arrays.fill(target, offset + written, offset + written + count, gains[Math.max(segment, 0)]);
+                written += count;
+                continue;
+            }
+
+            long segmentLength = frames[segment + 1] - frames[segment];
+            int count = (int) Math.min(length - written, frames[segment + 1] - frame);
+            double position = (double) (frame - frames[segment]) / segmentLength;
+            float start = interpolate(segment, position);
+
+            if (isExponential(segment)) {
+                double ratio = Math.pow(gains[segment + 1] / gains[segment], 1.0 / segmentLength);
+                double gain = start;
+                for (int i = 0; i < count; i++) {
+                    target[offset + written + i] = (float) gain;
+                    gain *= ratio;
+                }
+            } else {
+                float step = (gains[segment + 1] - gains[segment]) / segmentLength;
+                for (int i = 0; i < count; i++) {
+                    target[offset + written + i] = start + step * i;
+                }
+            }
+            written += count;
+        }
+    }
+
+    private int segmentAt(long frame) {
+        int index = Arrays.binarySearch(frames, frame);
+        return index >= 0 ? index : -index - 2;
+    }
+
+    private boolean isExponential(int segment) {
+        return curves[segment] == Curve.EXPONENTIAL && gains[segment] > 0.0f && gains[segment + 1] > 0.0f;
+    }
+
+    private float interpolate(int segment, double position) {
+        float from = gains[segment];
+        float to = gains[segment + 1];
+        if (isExponential(segment)) {
+            return (float) (from * Math.pow(to / from, position));
+        }
+        return (float) (from + (to - from) * position);
+    }
+}
@@ -0,0 +1,181 @@
+package entite;
+
+
+// Linear-phase half-band FIR used to oversample by 2 and back. Every even tap
+// except the centre is zero, so each polyphase branch is either a plain copy
+// (centre tap) or a short symmetric convolution over ODD_TAPS.
+public class HalfBandFilter {
+
+    private static final int HALF_LENGTH = 8;
+    static final int LENGTH = 4 * HALF_LENGTH - 1;
+    private static final double KAISER_BETA = 7.0;
+    private static final float[] ODD_TAPS = designOddTaps();
+
+    // ODD_TAPS[i] = h[2i + 1] = h[-(2i + 1)], for a 4 * HALF_LENGTH - 1 tap filter.
+    private static float[] designOddTaps() {
+        int span = 2 * HALF_LENGTH - 1;
+        float[] taps = new float[HALF_LENGTH];
+        double sum = 0.0;
+        for (int i = 0; i < HALF_LENGTH; i++) {
+            int k = 2 * i + 1;
+            double sinc = Math.sin(Math.PI * k / 2.0) / (Math.PI * k);
+            double ratio = (double) k / (span + 1);
+            double window = besselI0(KAISER_BETA * Math.sqrt(1.0 - ratio * ratio)) / besselI0(KAISER_BETA);
+            taps[i] = (float) (sinc * window);
+            sum += taps[i];
+        }
+        // Unity DC gain: centre tap 0.5 plus both odd sides summing to 0.5.
+        for (int i = 0; i < HALF_LENGTH; i++) {
+            taps[i] = (float) (taps[i] * 0.25 / sum);
+        }
+        return taps;
+    }
+
+    private static double besselI0(double x) {
+        double sum = 1.0;
+        double term = 1.0;
+        for (int k = 1; k < 32; k++) {
+            term *= (x / (2.0 * k)) * (x / (2.0 * k));
+            sum += term;
+        }
+        return sum;
+    }
+
+    public static float[] upsample(float[] samples, int factor) {
+        float[] result = samples;
+        for (int stage = factor; stage > 1; stage /= 2) {
+            result = upsample2x(result);
+        }
+        return result;
+    }
+
+    public static void downsample(float[] oversampled, int factor, float[] output) {
+        float[] result = oversampled;
+        for (int stage = factor; stage > 2; stage /= 2) {
+            float[] half = new float[result.length / 2];
+            downsample2x(result, half, half.length);
+            result = half;
+        }
+        if (factor > 1) {
+            downsample2x(result, output, output.length);
+        } else {
+            System.arraycopy(result, 0, output, 0, output.length);
+        }
+    }
+
+    // Buffer versions, a channel of x into a channel of y, factor = y's length
+    // over x's. stages hold the rates in between, 2x up to factor / 2, one
+    // channel each, and are overwritten.
+    public static void upsample(SampleBuffer x, int xChannel, SampleBuffer y, int yChannel, SampleBuffer[] stages) {
+        SampleBuffer source = x;
+        int sourceChannel = xChannel;
+        for (SampleBuffer stage : stages) {
+            upsample2x(source, sourceChannel, stage, 0);
+            source = stage;
+            sourceChannel = 0;
+        }
+        upsample2x(source, sourceChannel, y, yChannel);
+    }
+
+    public static void downsample(SampleBuffer y, int yChannel, SampleBuffer z, int zChannel, SampleBuffer[] stages) {
+        SampleBuffer source = y;
+        int sourceChannel = yChannel;
+        for (int stage = stages.length - 1; stage >= 0; stage--) {
+            downsample2x(source, sourceChannel, stages[stage], 0);
+            source = stages[stage];
+            sourceChannel = 0;
+        }
+        downsample2x(source, sourceChannel, z, zChannel);
+    }
+
+    // y[2n] = x[n]; y[2n + 1] = 2 * sum_i h[2i + 1] * (x[n - i] + x[n + 1 + i]).
+    static float[] upsample2x(float[] x) {
+        int n = x.length;
+        float[] y = new float[n * 2];
+        for (int m = 0; m < n; m++) {
+            y[2 * m] = x[m];
+
+            float acc = 0.0f;
+            if (m >= HALF_LENGTH - 1 && m + HALF_LENGTH < n) {
+                for (int i = 0; i < HALF_LENGTH; i++) {
+                    acc += ODD_TAPS[i] * (x[m - i] + x[m + 1 + i]);
+                }
+            } else {
+                for (int i = 0; i < HALF_LENGTH; i++) {
+                    float left = m - i >= 0 ? x[m - i] : 0.0f;
+                    float right = m + 1 + i < n ? x[m + 1 + i] : 0.0f;
+                    acc += ODD_TAPS[i] * (left + right);
+                }
+            }
+            y[2 * m + 1] = 2.0f * acc;
+        }
+        return y;
+    }
+
+    // z[n] = 0.5 * y[2n] + sum_i h[2i + 1] * (y[2n - 2i - 1] + y[2n + 2i + 1]).
+    static void downsample2x(float[] y, float[] z, int length) {
+        int n = y.length;
+        for (int m = 0; m < length; m++) {
+            int center = 2 * m;
+            float acc = 0.0f;
+            if (center - (2 * HALF_LENGTH - 1) >= 0 && center + 2 * HALF_LENGTH - 1 < n) {
+                for (int i = 0; i < HALF_LENGTH; i++) {
+                    acc += ODD_TAPS[i] * (y[center - 2 * i - 1] + y[center + 2 * i + 1]);
+                }
+            } else {
+                for (int i = 0; i < HALF_LENGTH; i++) {
+                    int left = center - 2 * i - 1;
+                    int right = center + 2 * i + 1;
+                    acc += ODD_TAPS[i] * ((left >= 0 ? y[left] : 0.0f) + (right < n ? y[right] : 0.0f));
+                }
+            }
+            z[m] = 0.5f * (center < n ? y[center] : 0.0f) + acc;
+        }
+    }
+
+    // As the array version, a block at a time; each input block is read with
+    // the filter's context either side, zero outside the signal.
+    static void upsample2x(SampleBuffer x, int xChannel, SampleBuffer y, int yChannel) {
+        long n = x.getNumFrames();
+        int block = SampleBuffer.BLOCK_FRAMES;
+        int before = HALF_LENGTH - 1;
+        float[] input = new float[before + block + HALF_LENGTH];
+        float[] output = new float[2 * block];
+        for (long start = 0; start < n; start += block) {
+            int count = (int) Math.min(block, n - start);
+            x.getPadded(xChannel, start - before, input, 0, before + count + HALF_LENGTH);
+            for (int k = 0; k < count; k++) {
+                int m = before + k;
+                output[2 * k] = input[m];
+
+                float acc = 0.0f;
+                for (int i = 0; i < HALF_LENGTH; i++) {
+                    acc += ODD_TAPS[i] * (input[m - i] + input[m + 1 + i]);
+                }
+                output[2 * k + 1] = 2.0f * acc;
+            }
+            y.put(yChannel, 2 * start, output, 0, 2 * count);
+        }
+    }
+
+    static void downsample2x(SampleBuffer y, int yChannel, SampleBuffer z, int zChannel) {
+        long length = z.getNumFrames();
+        int block = SampleBuffer.BLOCK_FRAMES;
+        int reach = 2 * HALF_LENGTH - 1;
+        float[] input = new float[2 * block + 2 * reach];
+        float[] output = new float[block];
+        for (long start = 0; start < length; start += block) {
+            int count = (int) Math.min(block, length - start);
+            y.getPadded(yChannel, 2 * start - reach, input, 0, 2 * count + 2 * reach);
+            for (int k = 0; k < count; k++) {
+                int center = reach + 2 * k;
+                float acc = 0.0f;
+                for (int i = 0; i < HALF_LENGTH; i++) {
+                    acc += ODD_TAPS[i] * (input[center - 2 * i - 1] + input[center + 2 * i + 1]);
+                }
+                output[k] = 0.5f * input[center] + acc;
+            }
+            z.put(zChannel, start, output, 0, count);
+        }
+    }
+}
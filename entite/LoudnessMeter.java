@@ -0,0 +1,344 @@
+package entite;
+
+import java.util.stream.IntStream;
+
+import javax.sound.sampled.AudioFormat;
+
+
+// ITU-R BS.1770 loudness: K-weighting (high shelf + high pass biquads), 400 ms
+// blocks on a 100 ms hop gated at -70 LUFS and -10 LU, 3 s short-term windows,
+// and a 4x oversampled true peak. Gated blocks go into an energy histogram that
+// can be merged, so segments of a file can be measured in parallel.
+public class LoudnessMeter {
+
+    private static final int STEPS_PER_BLOCK = 4;
+    private static final int STEPS_PER_SHORT_TERM = 30;
+    private static final int CHUNK_FRAMES = 4096;
+    private static final int SEGMENT_SECONDS = 10;
+    private static final int TRUE_PEAK_FACTOR = 4;
+    private static final int TRUE_PEAK_CONTEXT = 32;
+
+    private final int numChannels;
+    private final int stepFrames;
+    private final double[] channelWeights;
+    private final double[][] filterState;
+    private final double[] shelf;
+    private final double[] highPass;
+
+    private final long countFrom;
+    private final long countTo;
+    private final long warmupSteps;
+    private long position;
+
+    private final double[] stepSums;
+    private int stepFill = 0;
+    private long stepsDone = 0;
+    private final double[] stepEnergies = new double[STEPS_PER_SHORT_TERM];
+
+    private final GatingHistogram histogram = new GatingHistogram();
+    private double shortTermEnergy = 0.0;
+    private double maxShortTermEnergy = 0.0;
+
+    private final float[][] peakCarry;
+    private float truePeak = 0.0f;
+
+    public LoudnessMeter(float sampleRate, int numChannels) {
+        this(sampleRate, numChannels, 0, Long.MAX_VALUE, 0);
+    }
+
+    // Measures frames [countFrom, countTo) of a stream that starts at
+    // countFrom - warmupFrames; the warm-up only primes filters and windows.
+    private LoudnessMeter(float sampleRate, int numChannels, long countFrom, long countTo, long warmupFrames) {
+        this.numChannels = numChannels;
+        this.stepFrames = Math.max(1, Math.round(sampleRate / 10.0f));
+        this.channelWeights = channelWeights(numChannels);
+        this.filterState = new double[numChannels][4];
+        this.shelf = designShelf(sampleRate);
+        this.highPass = designHighPass(sampleRate);
+        this.countFrom = countFrom;
+        this.countTo = countTo;
+        this.warmupSteps = warmupFrames / stepFrames;
+        this.position = countFrom - warmupFrames;
+        this.stepSums = new double[numChannels];
+        this.peakCarry = new float[numChannels][TRUE_PEAK_CONTEXT];
+    }
+
+    private static double[] channelWeights(int numChannels) {
+        double[] weights = new double[numChannels];
+        for (int channel = 0; channel < numChannels; channel++) {
+            weights[channel] = 1.0;
+        }
+        if (numChannels == 6) {
+            weights[3] = 0.0;
+            weights[4] = 1.41;
+            weights[5] = 1.41;
+        }
+        return weights;
+    }
+
+    // { b0, b1, b2, a1, a2 } of the pre-filter shelf, valid at any sample rate.
+    private static double[] designShelf(double sampleRate) {
+        double f0 = 1681.974450955533;
+        double gainDb = 3.999843853973347;
+        double q = 0.7071752369554196;
+        double k = Math.tan(Math.PI * f0 / sampleRate);
+        double vh = Math.pow(10.0, gainDb / 20.0);
+        double vb = Math.pow(vh, 0.4996667741545416);
+        double a0 = 1.0 + k / q + k * k;
+        return new double[] {
+            (vh + vb * k / q + k * k) / a0,
+            2.0 * (k * k - vh) / a0,
+            (vh - vb * k / q + k * k) / a0,
+            2.0 * (k * k - 1.0) / a0,
+            (1.0 - k / q + k * k) / a0
+        };
+    }
+
+    private static double[] designHighPass(double sampleRate) {
+        double f0 = 38.13547087602444;
+        double q = 0.5003270373238773;
+        double k = Math.tan(Math.PI * f0 / sampleRate);
+        double a0 = 1.0 + k / q + k * k;
+        return new double[] { 1.0, -2.0, 1.0, 2.0 * (k * k - 1.0) / a0, (1.0 - k / q + k * k) / a0 };
+    }
+
+    public void process(float[][] samples, int offset, int length) {
+        updateTruePeak(samples, offset, length);
+
+        for (int i = 0; i < length; i++, position++) {
+            if (position >= countTo) {
+                return;
+            }
+
+            for (int channel = 0; channel < numChannels; channel++) {
+                double y = kWeight(channel, samples[channel][offset + i]);
+                stepSums[channel] += y * y;
+            }
+
+            if (++stepFill == stepFrames) {
+                finishStep();
+            }
+        }
+    }
+
+    // Transposed direct form II, shelf then high pass.
+    private double kWeight(int channel, double x) {
+        double[] state = filterState[channel];
+        double y = shelf[0] * x + state[0];
+        state[0] = shelf[1] * x - shelf[3] * y + state[1];
+        state[1] = shelf[2] * x - shelf[4] * y;
+
+        double z = highPass[0] * y + state[2];
+        state[2] = highPass[1] * y - highPass[3] * z + state[3];
+        state[3] = highPass[2] * y - highPass[4] * z;
+        return z;
+    }
+
+    private void finishStep() {
+        double energy = 0.0;
+        for (int channel = 0; channel < numChannels; channel++) {
+            energy += channelWeights[channel] * stepSums[channel] / stepFrames;
+            stepSums[channel] = 0.0;
+        }
+        stepEnergies[(int) (stepsDone % STEPS_PER_SHORT_TERM)] = energy;
+        stepsDone++;
+        stepFill = 0;
+
+        if (stepsDone <= warmupSteps) {
+            return;
+        }
+
+        if (stepsDone >= STEPS_PER_BLOCK) {
+            histogram.add(windowEnergy(STEPS_PER_BLOCK));
+        }
+        if (stepsDone >= STEPS_PER_SHORT_TERM) {
+            shortTermEnergy = windowEnergy(STEPS_PER_SHORT_TERM);
+            maxShortTermEnergy = Math.max(maxShortTermEnergy, shortTermEnergy);
+        }
+    }
+
+    private double windowEnergy(int steps) {
+        double sum = 0.0;
+        for (int k = 1; k <= steps; k++) {
+            sum += stepEnergies[(int) ((stepsDone - k) % STEPS_PER_SHORT_TERM)];
+        }
+        return sum / steps;
+    }
+
+    // Each call oversamples the carried context plus the new frames and checks
+    // the frames whose filter support is now complete; the last half of the
+    // context is checked on the next call or in getTruePeak().
+    private void updateTruePeak(float[][] samples, int offset, int length) {
+        int half = TRUE_PEAK_CONTEXT / 2;
+        long firstChecked = position - half;
+
+        for (int channel = 0; channel < numChannels; channel++) {
+            float[] buffer = new float[TRUE_PEAK_CONTEXT + length];
+            System.arraycopy(peakCarry[channel], 0, buffer, 0, TRUE_PEAK_CONTEXT);
+            System.arraycopy(samples[channel], offset, buffer, TRUE_PEAK_CONTEXT, length);
+
+            truePeak = Math.max(truePeak, scanTruePeak(buffer, half, buffer.length - half, firstChecked));
+            System.arraycopy(buffer, buffer.length - TRUE_PEAK_CONTEXT, peakCarry[channel], 0, TRUE_PEAK_CONTEXT);
+        }
+    }
+
+    // Peak of buffer[from, to) after oversampling, where buffer[from] is frame
+    // firstFrame; frames outside [countFrom, countTo) are ignored.
+    private float scanTruePeak(float[] buffer, int from, int to, long firstFrame) {
+        int start = (int) Math.min(to, from + Math.max(0, countFrom - firstFrame));
+        int end = to;
+        if (countTo != Long.MAX_VALUE && countTo - firstFrame < to - from) {
+            end = (int) Math.max(start, from + countTo - firstFrame);
+        }
+        if (start >= end) {
+            return 0.0f;
+        }
+
+        float peak = 0.0f;
+        float[] oversampled = HalfBandFilter.upsample(buffer, TRUE_PEAK_FACTOR);
+        for (int i = start * TRUE_PEAK_FACTOR; i < end * TRUE_PEAK_FACTOR; i++) {
+            peak = Math.max(peak, Math.abs(oversampled[i]));
+        }
+        return peak;
+    }
+
+    public void merge(LoudnessMeter other) {
+        histogram.merge(other.histogram);
+        maxShortTermEnergy = Math.max(maxShortTermEnergy, other.maxShortTermEnergy);
+        shortTermEnergy = other.shortTermEnergy;
+        truePeak = Math.max(truePeak, other.getTruePeak());
+    }
+
+    public double getIntegratedLoudness() {
+        return histogram.integratedLoudness();
+    }
+
+    public double getShortTermLoudness() {
+        return toLoudness(shortTermEnergy);
+    }
+
+    public double getMaxShortTermLoudness() {
+        return toLoudness(maxShortTermEnergy);
+    }
+
+    public float getTruePeak() {
+        int half = TRUE_PEAK_CONTEXT / 2;
+        float peak = truePeak;
+        for (int channel = 0; channel < numChannels; channel++) {
+            float[] buffer = new float[TRUE_PEAK_CONTEXT + half];
+            System.arraycopy(peakCarry[channel], 0, buffer, 0, TRUE_PEAK_CONTEXT);
+            peak = Math.max(peak, scanTruePeak(buffer, half, TRUE_PEAK_CONTEXT, position - half));
+        }
+        return peak;
+    }
+
+    public double getTruePeakDb() {
+        return 20.0 * Math.log10(getTruePeak());
+    }
+
+    // Linear gain that brings the integrated loudness to targetLufs without
+    // pushing the true peak above ceilingDbtp.
+    public float getNormalizationGain(double targetLufs, double ceilingDbtp) {
+        double integrated = getIntegratedLoudness();
+        if (Double.isInfinite(integrated)) {
+            return 1.0f;
+        }
+        double gainDb = targetLufs - integrated;
+        double peakDb = getTruePeakDb();
+        if (!Double.isInfinite(peakDb)) {
+            gainDb = Math.min(gainDb, ceilingDbtp - peakDb);
+        }
+        return (float) Math.pow(10.0, gainDb / 20.0);
+    }
+
+    static double toLoudness(double energy) {
+        return energy > 0.0 ? -0.691 + 10.0 * Math.log10(energy) : Double.NEGATIVE_INFINITY;
+    }
+
+    // Segments start on 100 ms boundaries and replay up to 3 s before their
+    // start so filters and short-term windows match a sequential pass.
+    public static LoudnessMeter measure(byte[] audioData, AudioFormat format, boolean parallel) {
+        return measure(SampleStore.wrap(audioData, format), parallel);
+    }
+    
+    public static LoudnessMeter measure(FrameSource audioData, boolean parallel) {
+        AudioFormat format = audioData.getFormat();
+        float sampleRate = format.getSampleRate();
+        int numChannels = format.getChannels();
+        long totalFrames = audioData.getNumFrames();
+        int stepFrames = Math.max(1, Math.round(sampleRate / 10.0f));
+        long segmentFrames = (long) stepFrames * 10 * SEGMENT_SECONDS;
+        long warmupFrames = (long) stepFrames * STEPS_PER_SHORT_TERM;
+        int numSegments = (int) Math.max(1, (totalFrames + segmentFrames - 1) / segmentFrames);
+
+        IntStream segments = IntStream.range(0, numSegments);
+        if (parallel) {
+            segments = segments.parallel();
+        }
+
+        return segments.mapToObj(segment -> {
+            long from = segment * segmentFrames;
+            long to = segment == numSegments - 1 ? Long.MAX_VALUE : from + segmentFrames;
+            long warmup = Math.min(from, warmupFrames);
+            LoudnessMeter meter = new LoudnessMeter(sampleRate, numChannels, from, to, warmup);
+
+            long end = Math.min(totalFrames, to == Long.MAX_VALUE ? totalFrames : to + TRUE_PEAK_CONTEXT);
+            float[][] chunk = new float[numChannels][CHUNK_FRAMES];
+            for (long frame = from - warmup; frame < end; frame += CHUNK_FRAMES) {
+                int frames = (int) Math.min(CHUNK_FRAMES, end - frame);
+                audioData.readFrames(frame, chunk, 0, frames);
+                meter.process(chunk, 0, frames);
+            }
+            return meter;
+        }).reduce((first, second) -> {
+            first.merge(second);
+            return first;
+        }).get();
+    }
+
+
+    private static final class GatingHistogram {
+        private static final double MIN_LOUDNESS = -70.0;
+        private static final double BIN_WIDTH = 0.01;
+        private static final int NUM_BINS = 10000;
+
+        private final long[] counts = new long[NUM_BINS];
+        private final double[] energies = new double[NUM_BINS];
+
+        void add(double energy) {
+            double loudness = toLoudness(energy);
+            if (loudness < MIN_LOUDNESS) {
+                return;
+            }
+            int bin = Math.min(NUM_BINS - 1, (int) ((loudness - MIN_LOUDNESS) / BIN_WIDTH));
+            counts[bin]++;
+            energies[bin] += energy;
+        }
+
+        void merge(GatingHistogram other) {
+            for (int bin = 0; bin < NUM_BINS; bin++) {
+                counts[bin] += other.counts[bin];
+                energies[bin] += other.energies[bin];
+            }
+        }
+
+        double integratedLoudness() {
+            double relativeGate = meanLoudness(0) - 10.0;
+            if (Double.isInfinite(relativeGate)) {
+                return Double.NEGATIVE_INFINITY;
+            }
+            int firstBin = (int) Math.max(0, Math.ceil((relativeGate - MIN_LOUDNESS) / BIN_WIDTH));
+            return meanLoudness(firstBin);
+        }
+
+        private double meanLoudness(int firstBin) {
+            long count = 0;
+            double energy = 0.0;
+            for (int bin = firstBin; bin < NUM_BINS; bin++) {
+                count += counts[bin];
+                energy += energies[bin];
+            }
+            return count > 0 ? toLoudness(energy / count) : Double.NEGATIVE_INFINITY;
+        }
+    }
+}
@@ -5,6 +5,7 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.Arrays;
+import java.util.stream.IntStream;
 
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.UnsupportedAudioFileException;
@@ -13,10 +14,14 @@ public class NoiseReductionProcessor {
 
     private static final int FFT_SIZE = 2048; 
     private static final int HOP_SIZE = FFT_SIZE / 4; 
+    private static final int FRAMES_PER_BATCH = 256;
     
     private float reductionFactor = 0.9f;    
     private float noiseFloor = 0.05f;        
     private float smoothingFactor = 0.7f;    
+    private boolean parallelProcessing = Runtime.getRuntime().availableProcessors() > 1;
+    // Null allocates every buffer afresh.
+    private BufferPool bufferPool = null;
     
     private float[] noiseProfile = null;
     private boolean noiseProfileEstimated = false;
@@ -39,21 +44,57 @@ public class NoiseReductionProcessor {
         this.noiseFloor = noiseFloor;
         this.smoothingFactor = smoothingFactor;
     }
+    
+    public void setParallelProcessing(boolean parallel) {
+        this.parallelProcessing = parallel;
+    }
+    
+    public boolean isParallelProcessing() {
+        return parallelProcessing;
+    }
+    
+    // The returned buffer is leased from pool; the caller may release it to
+    // the pool once done with it.
+    public void setBufferPool(BufferPool pool) {
+        this.bufferPool = pool;
+    }
+    
+    private byte[] leaseBytes(int length) {
+        return bufferPool != null ? bufferPool.leaseBytes(length) : new byte[length];
+    }
 
     public byte[] processAudio(byte[] audioData, AudioFormat format) {
+        return processAudio(audioData, format, null);
+    }
+    
+    // outputPeaks, when given, receives the peaks of the returned audio.
+    // The decoded input and the overlap-added output are SampleBuffers, read
+    // and written a frame or a batch at a time, so only the input and the
+    // returned array are on the heap.
+    public byte[] processAudio(byte[] audioData, AudioFormat format, PeakAccumulator outputPeaks) {
         if (audioData == null) {
             return null;
         }
         
-        float[] samples = convertToFloatSamples(audioData, format);
-        
-        if (!noiseProfileEstimated && !hasLearnedNoiseProfile) {
-            estimateNoiseProfile(samples);
+        int numSamples = audioData.length / (format.getSampleSizeInBits() / 8);
+        try (SampleBuffer.Arena arena = SampleBuffer.Arena.forBytes(2L * numSamples * Float.BYTES)) {
+            SampleBuffer samples = convertToFloatSamples(audioData, format, arena);
+            
+            if (!noiseProfileEstimated && !hasLearnedNoiseProfile) {
+                float[] head = new float[Math.min(numSamples, 9 * HOP_SIZE + FFT_SIZE)];
+                samples.get(0, 0, head, 0, head.length);
+                estimateNoiseProfile(head);
+            }
+            
+            SampleBuffer processedSamples = arena.allocate(1, numSamples);
+            if (parallelProcessing) {
+                applyNoiseReductionParallel(samples, processedSamples);
+            } else {
+                applyNoiseReduction(samples, processedSamples);
+            }
+            
+            return convertToByteArray(processedSamples, format, outputPeaks);
         }
-        
-        float[] processedSamples = applyNoiseReduction(samples);
-        
-        return convertToByteArray(processedSamples, format);
     }
     
 
@@ -128,6 +169,22 @@ public class NoiseReductionProcessor {
         learnNoiseProfileFromSamples(noiseSamples);
     }
     
+    // Learns from frames [startFrame, endFrame) only, as interleaved samples
+    // like processAudio sees them; the rest of the buffer is not decoded.
+    public void learnNoiseProfileFromFrames(byte[] audioData, AudioFormat format, 
+                                           long startFrame, long endFrame) {
+        int frameSize = format.getFrameSize();
+        long numFrames = audioData.length / frameSize;
+        if (startFrame < 0 || endFrame > numFrames || startFrame >= endFrame) {
+            throw new IllegalArgumentException(
+                "Invalid frame range [" + startFrame + ", " + endFrame + ") for " + numFrames + " frames");
+        }
+        
+        byte[] section = Arrays.copyOfRange(audioData, 
+            (int) (startFrame * frameSize), (int) (endFrame * frameSize));
+        learnNoiseProfileFromSamples(convertToFloatSamples(section, format));
+    }
+    
 
     private void estimateNoiseProfile(float[] samples) {
         noiseProfile = new float[FFT_SIZE / 2 + 1];
@@ -166,19 +223,18 @@ public class NoiseReductionProcessor {
         noiseProfileEstimated = true;
     }
     
-    private float[] applyNoiseReduction(float[] samples) {
-        float[] output = new float[samples.length];
+    // output starts zeroed, as buffers are allocated.
+    private void applyNoiseReduction(SampleBuffer samples, SampleBuffer output) {
+        int length = (int) samples.getNumFrames();
+        float[] overlap = new float[FFT_SIZE];
         
-        for (int frameIndex = 0; frameIndex < samples.length / HOP_SIZE; frameIndex++) {
+        for (int frameIndex = 0; frameIndex < length / HOP_SIZE; frameIndex++) {
             int startIndex = frameIndex * HOP_SIZE;
-            if (startIndex + FFT_SIZE > samples.length) break;
+            if (startIndex + FFT_SIZE > length) break;
             
+            samples.get(0, startIndex, inputBuffer, 0, FFT_SIZE);
             for (int i = 0; i < FFT_SIZE; i++) {
-                if (startIndex + i < samples.length) {
-                    inputBuffer[i] = samples[startIndex + i] * window[i];
-                } else {
-                    inputBuffer[i] = 0;
-                }
+                inputBuffer[i] *= window[i];
             }
             
             float[] fftReal = new float[FFT_SIZE];
@@ -219,20 +275,128 @@ public class NoiseReductionProcessor {
             
             computeIFFT(fftReal, fftImag);
             
+            output.get(0, startIndex, overlap, 0, FFT_SIZE);
             for (int i = 0; i < FFT_SIZE; i++) {
-                if (startIndex + i < output.length) {
-                    output[startIndex + i] += fftReal[i] * window[i] / (FFT_SIZE / HOP_SIZE / 2);
+                overlap[i] += fftReal[i] * window[i] / (FFT_SIZE / HOP_SIZE / 2);
+            }
+            output.put(0, startIndex, overlap, 0, FFT_SIZE);
+        }
+    }
+    
+    // Forward and inverse transforms are independent per frame; only the gain
+    // smoothing carries state from one frame to the next, so it runs sequentially
+    // between two parallel FFT passes. Frames are handled in bounded batches.
+    private void applyNoiseReductionParallel(SampleBuffer samples, SampleBuffer output) {
+        int length = (int) samples.getNumFrames();
+        if (length < FFT_SIZE) {
+            return;
+        }
+        
+        int numFrames = (length - FFT_SIZE) / HOP_SIZE + 1;
+        int batchCapacity = Math.min(FRAMES_PER_BATCH, numFrames);
+        float[][] fftReal = new float[batchCapacity][FFT_SIZE];
+        float[][] fftImag = new float[batchCapacity][FFT_SIZE];
+        int workers = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), batchCapacity));
+        float[] overlap = new float[((batchCapacity + workers - 1) / workers - 1) * HOP_SIZE + FFT_SIZE];
+        
+        for (int batchStart = 0; batchStart < numFrames; batchStart += batchCapacity) {
+            int batchFrames = Math.min(batchCapacity, numFrames - batchStart);
+            int firstFrame = batchStart;
+            
+            IntStream.range(0, batchFrames).parallel().forEach(f -> {
+                float[] real = fftReal[f];
+                float[] imag = fftImag[f];
+                int startIndex = (firstFrame + f) * HOP_SIZE;
+                samples.get(0, startIndex, real, 0, FFT_SIZE);
+                for (int i = 0; i < FFT_SIZE; i++) {
+                    real[i] *= window[i];
+                }
+                Arrays.fill(imag, 0.0f);
+                computeFFT(real, imag);
+            });
+            
+            for (int f = 0; f < batchFrames; f++) {
+                applySpectralGain(fftReal[f], fftImag[f], firstFrame + f > 0);
+            }
+            
+            int framesPerWorker = (batchFrames + workers - 1) / workers;
+            float[][] partitions = new float[workers][];
+            IntStream.range(0, workers).parallel().forEach(w -> {
+                int from = w * framesPerWorker;
+                int to = Math.min(batchFrames, from + framesPerWorker);
+                if (from >= to) {
+                    return;
+                }
+                float[] partition = new float[(to - from - 1) * HOP_SIZE + FFT_SIZE];
+                for (int f = from; f < to; f++) {
+                    float[] real = fftReal[f];
+                    computeIFFT(real, fftImag[f]);
+                    int offset = (f - from) * HOP_SIZE;
+                    for (int i = 0; i < FFT_SIZE; i++) {
+                        partition[offset + i] += real[i] * window[i] / (FFT_SIZE / HOP_SIZE / 2);
+                    }
+                }
+                partitions[w] = partition;
+            });
+            
+            for (int w = 0; w < workers; w++) {
+                float[] partition = partitions[w];
+                if (partition == null) {
+                    continue;
+                }
+                int startIndex = (firstFrame + w * framesPerWorker) * HOP_SIZE;
+                int count = Math.min(partition.length, length - startIndex);
+                output.get(0, startIndex, overlap, 0, count);
+                for (int i = 0; i < count; i++) {
+                    overlap[i] += partition[i];
                 }
+                output.put(0, startIndex, overlap, 0, count);
             }
         }
+    }
+    
+    private void applySpectralGain(float[] real, float[] imag, boolean smooth) {
+        for (int i = 0; i <= FFT_SIZE / 2; i++) {
+            float magnitude = (float) Math.sqrt(real[i] * real[i] + imag[i] * imag[i]);
+            float gain = Math.max(0, 1 - ((5.0f * reductionFactor) * noiseProfile[i] / Math.max(magnitude, noiseFloor)));
+            if (smooth) {
+                gain = smoothingFactor * gain + (1 - smoothingFactor) * (prevMagnitude[i] / Math.max(magnitude, 1e-6f));
+            }
+            
+            real[i] *= gain;
+            imag[i] *= gain;
+            prevMagnitude[i] = magnitude * gain;
+        }
         
-        return output;
+        for (int i = 1; i < FFT_SIZE / 2; i++) {
+            real[FFT_SIZE - i] = real[i];
+            imag[FFT_SIZE - i] = -imag[i];
+        }
     }
     
     private float[] convertToFloatSamples(byte[] audioData, AudioFormat format) {
-        int bytesPerSample = format.getSampleSizeInBits() / 8;
-        int numSamples = audioData.length / bytesPerSample;
+        int numSamples = audioData.length / (format.getSampleSizeInBits() / 8);
         float[] samples = new float[numSamples];
+        decodeSamples(audioData, format, 0, samples, numSamples);
+        return samples;
+    }
+    
+    // Interleaved samples in a one-channel buffer from arena, a block at a time.
+    private SampleBuffer convertToFloatSamples(byte[] audioData, AudioFormat format, SampleBuffer.Arena arena) {
+        int numSamples = audioData.length / (format.getSampleSizeInBits() / 8);
+        SampleBuffer samples = arena.allocate(1, numSamples);
+        float[] block = new float[SampleBuffer.BLOCK_FRAMES];
+        for (int start = 0; start < numSamples; start += block.length) {
+            int count = Math.min(block.length, numSamples - start);
+            decodeSamples(audioData, format, start, block, count);
+            samples.put(0, start, block, 0, count);
+        }
+        return samples;
+    }
+    
+    // Samples [from, from + count) of audioData into samples[0, count).
+    private static void decodeSamples(byte[] audioData, AudioFormat format, int from, float[] samples, int count) {
+        int bytesPerSample = format.getSampleSizeInBits() / 8;
         
         ByteBuffer bb = ByteBuffer.wrap(audioData);
         if (format.isBigEndian()) {
@@ -241,13 +405,14 @@ public class NoiseReductionProcessor {
             bb.order(ByteOrder.LITTLE_ENDIAN);
         }
         
-        for (int i = 0; i < numSamples; i++) {
+        for (int k = 0; k < count; k++) {
+            int i = from + k;
             if (bytesPerSample == 1) {
-                samples[i] = ((audioData[i] & 0xFF) - 128) / 128.0f;
+                samples[k] = ((audioData[i] & 0xFF) - 128) / 128.0f;
             } else if (bytesPerSample == 2) {
                 if (i * 2 + 1 < audioData.length) {
                     short shortSample = bb.getShort(i * 2);
-                    samples[i] = shortSample / 32768.0f;
+                    samples[k] = shortSample / 32768.0f;
                 }
             } else if (bytesPerSample == 3) {
                 if (i * 3 + 2 < audioData.length) {
@@ -264,17 +429,18 @@ public class NoiseReductionProcessor {
                     if ((intSample & 0x800000) != 0) {
                         intSample |= 0xFF000000;
                     }
-                    samples[i] = intSample / 8388608.0f;
+                    samples[k] = intSample / 8388608.0f;
                 }
             }
         }
-        
-        return samples;
     }
     
-    private byte[] convertToByteArray(float[] samples, AudioFormat format) {
+    private byte[] convertToByteArray(SampleBuffer samples, AudioFormat format, PeakAccumulator outputPeaks) {
         int bytesPerSample = format.getSampleSizeInBits() / 8;
-        byte[] audioData = new byte[samples.length * bytesPerSample];
+        int numChannels = format.getChannels();
+        int numSamples = (int) samples.getNumFrames();
+        byte[] audioData = leaseBytes(numSamples * bytesPerSample);
+        float[] block = new float[SampleBuffer.BLOCK_FRAMES];
         
         ByteBuffer bb = ByteBuffer.wrap(audioData);
         if (format.isBigEndian()) {
@@ -283,27 +449,41 @@ public class NoiseReductionProcessor {
             bb.order(ByteOrder.LITTLE_ENDIAN);
         }
         
-        for (int i = 0; i < samples.length; i++) {
-            if (bytesPerSample == 1) {
-                int sample = Math.round(samples[i] * 128.0f) + 128;
-                sample = Math.min(255, Math.max(0, sample));
-                audioData[i] = (byte) sample;
-            } else if (bytesPerSample == 2) {
-                int sample = Math.round(samples[i] * 32768.0f);
-                sample = Math.min(32767, Math.max(-32768, sample));
-                bb.putShort(i * 2, (short) sample);
-            } else if (bytesPerSample == 3) {
-                int sample = Math.round(samples[i] * 8388608.0f);
-                sample = Math.min(8388607, Math.max(-8388608, sample));
-                
-                if (format.isBigEndian()) {
-                    audioData[i * 3] = (byte) (sample >> 16);
-                    audioData[i * 3 + 1] = (byte) (sample >> 8);
-                    audioData[i * 3 + 2] = (byte) sample;
-                } else {
-                    audioData[i * 3] = (byte) sample;
-                    audioData[i * 3 + 1] = (byte) (sample >> 8);
-                    audioData[i * 3 + 2] = (byte) (sample >> 16);
+        for (int start = 0; start < numSamples; start += block.length) {
+            int count = Math.min(block.length, numSamples - start);
+            samples.get(0, start, block, 0, count);
+            for (int k = 0; k < count; k++) {
+                int i = start + k;
+                if (bytesPerSample == 1) {
+                    int sample = Math.round(block[k] * 128.0f);
+                    sample = Math.min(127, Math.max(-128, sample));
+                    audioData[i] = (byte) (sample + 128);
+                    if (outputPeaks != null) {
+                        outputPeaks.add(i / numChannels, sample);
+                    }
+                } else if (bytesPerSample == 2) {
+                    int sample = Math.round(block[k] * 32768.0f);
+                    sample = Math.min(32767, Math.max(-32768, sample));
+                    bb.putShort(i * 2, (short) sample);
+                    if (outputPeaks != null) {
+                        outputPeaks.add(i / numChannels, sample);
+                    }
+                } else if (bytesPerSample == 3) {
+                    int sample = Math.round(block[k] * 8388608.0f);
+                    sample = Math.min(8388607, Math.max(-8388608, sample));
+                    if (outputPeaks != null) {
+                        outputPeaks.add(i / numChannels, sample);
+                    }
+                    
+                    if (format.isBigEndian()) {
+                        audioData[i * 3] = (byte) (sample >> 16);
+                        audioData[i * 3 + 1] = (byte) (sample >> 8);
+                        audioData[i * 3 + 2] = (byte) sample;
+                    } else {
+                        audioData[i * 3] = (byte) sample;
+                        audioData[i * 3 + 1] = (byte) (sample >> 8);
+                        audioData[i * 3 + 2] = (byte) (sample >> 16);
+                    }
                 }
             }
         }
@@ -383,4 +563,34 @@ public class NoiseReductionProcessor {
     public boolean hasLearnedNoiseProfile() {
         return hasLearnedNoiseProfile;
     }
+    
+    // Frames either side of a range that affect its output: the STFT window
+    // spans FFT_SIZE interleaved samples, and the gain smoothing carries over
+    // from frame to frame, so two windows are allowed for it to settle.
+    public int getLatencyFrames(AudioFormat format) {
+        int numChannels = format.getChannels();
+        return (2 * FFT_SIZE + numChannels - 1) / numChannels;
+    }
+    
+    // Analysis frames start every HOP_SIZE interleaved samples from the start of
+    // the buffer; a slice starting on a multiple of this many frames keeps them
+    // where they fall for the whole buffer.
+    public int getAlignmentFrames() {
+        return HOP_SIZE;
+    }
+    
+    // Frames from the start of a buffer that processAudio reads to estimate the
+    // noise profile when none has been learned.
+    public int getProfileEstimateFrames(AudioFormat format) {
+        int numChannels = format.getChannels();
+        return (9 * HOP_SIZE + FFT_SIZE + numChannels - 1) / numChannels;
+    }
+    
+    // Estimates the profile from the head of a buffer as processAudio would, so
+    // a later call on part of that buffer uses the same profile as the whole.
+    public void ensureNoiseProfile(byte[] head, AudioFormat format) {
+        if (!noiseProfileEstimated && !hasLearnedNoiseProfile) {
+            estimateNoiseProfile(convertToFloatSamples(head, format));
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,46 @@
+package entite;
+
+import java.util.Arrays;
+
+import javax.sound.sampled.AudioFormat;
+
+
+// Side output of a stage that writes PCM: the min/max of every BASE_BUCKET
+// frames, taken from the integer samples as they are written, so the display
+// pyramid of the output needs no decode of its own.
+public class PeakAccumulator {
+
+    private final int[] min;
+    private final int[] max;
+
+    public PeakAccumulator(long numFrames) {
+        int numBuckets = PeakPyramid.numBuckets(numFrames);
+        min = new int[numBuckets];
+        max = new int[numBuckets];
+        Arrays.fill(min, Integer.MAX_VALUE);
+        Arrays.fill(max, Integer.MIN_VALUE);
+    }
+
+    // sample is signed, as written before any 8-bit offset is applied.
+    void add(long frame, int sample) {
+        int bucket = (int) (frame >>> PeakPyramid.BASE_BUCKET_SHIFT);
+        if (sample < min[bucket]) {
+            min[bucket] = sample;
+        }
+        if (sample > max[bucket]) {
+            max[bucket] = sample;
+        }
+    }
+
+    public PeakPyramid toPyramid(byte[] audioData, AudioFormat format) {
+        float scale = 1.0f / (1 << (format.getSampleSizeInBits() - 1));
+        float[] baseMin = new float[min.length];
+        float[] baseMax = new float[max.length];
+        for (int bucket = 0; bucket < min.length; bucket++) {
+            boolean empty = min[bucket] > max[bucket];
+            baseMin[bucket] = empty ? 0.0f : min[bucket] * scale;
+            baseMax[bucket] = empty ? 0.0f : max[bucket] * scale;
+        }
+        return PeakPyramid.fromBaseLevel(audioData, format, baseMin, baseMax);
+    }
+}
@@ -0,0 +1,210 @@
+package entite;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import javax.sound.sampled.AudioFormat;
+
+
+// Sidecar files holding every level of a PeakPyramid as int16 min/max pairs,
+// so a file opened before shows its waveform without being decoded. Entries
+// live in CACHE_DIR and are keyed by the audio file's path, size, modification
+// time and a CRC of sampled blocks of its content; a stale or unreadable entry
+// is simply ignored and rewritten. Entries past MAX_CACHE_BYTES in total are
+// deleted least recently used first; a hit counts as a use.
+public class PeakCache {
+
+    private static final int MAGIC = 0x504B5331;
+    private static final int VERSION = 1;
+    private static final int SAMPLED_BLOCKS = 32;
+    private static final int SAMPLED_BLOCK_SIZE = 4096;
+    private static final int EDGE_BLOCK_SIZE = 65536;
+    private static final float QUANTIZATION = 32767.0f;
+
+    private static final File CACHE_DIR = new File(
+            System.getProperty("peakcache.dir", System.getProperty("user.home") + "/.song_affect/peaks"));
+    private static final long MAX_CACHE_BYTES = Long.getLong("peakcache.maxbytes", 256L << 20);
+    private static final String ENTRY_SUFFIX = ".peaks";
+
+    private PeakCache() {
+    }
+
+    // Returns null on a miss; the pyramid has no samples attached.
+    public static PeakPyramid load(File audioFile, AudioFormat format) {
+        File entry = entryFor(audioFile);
+        if (!entry.isFile()) {
+            return null;
+        }
+
+        try (FileChannel channel = FileChannel.open(entry.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            byte[] expectedKey = keyOf(audioFile, format);
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION || buffer.getInt() != expectedKey.length) {
+                return null;
+            }
+            byte[] key = new byte[expectedKey.length];
+            buffer.get(key);
+            if (!Arrays.equals(key, expectedKey)) {
+                return null;
+            }
+
+            long numFrames = buffer.getLong();
+            int numLevels = buffer.getInt();
+            // Sizes are checked against the data left before anything is
+            // allocated for them, so a damaged entry is only a miss.
+            if (numLevels < 0 || 4L * numLevels > buffer.remaining()) {
+                return null;
+            }
+            float[][] mins = new float[numLevels][];
+            float[][] maxs = new float[numLevels][];
+            for (int level = 0; level < numLevels; level++) {
+                int count = buffer.getInt();
+                if (count < 0 || 4L * count > buffer.remaining()) {
+                    return null;
+                }
+                short[] pairs = new short[2 * count];
+                ShortBuffer shorts = buffer.asShortBuffer();
+                shorts.get(pairs);
+                buffer.position(buffer.position() + 4 * count);
+
+                mins[level] = new float[count];
+                maxs[level] = new float[count];
+                for (int i = 0; i < count; i++) {
+                    mins[level][i] = pairs[2 * i] / QUANTIZATION;
+                    maxs[level][i] = pairs[2 * i + 1] / QUANTIZATION;
+                }
+            }
+            PeakPyramid peaks = PeakPyramid.fromLevels(format, numFrames, mins, maxs);
+            entry.setLastModified(System.currentTimeMillis());
+            return peaks;
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    // Minima round down and maxima up, so the stored envelope never shrinks.
+    public static void store(File audioFile, AudioFormat format, PeakPyramid peaks) {
+        try {
+            byte[] key = keyOf(audioFile, format);
+            Files.createDirectories(CACHE_DIR.toPath());
+            Path entry = entryFor(audioFile).toPath();
+            Path temp = Files.createTempFile(CACHE_DIR.toPath(), "peaks", ".tmp");
+
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                ByteBuffer header = ByteBuffer.allocate(24 + key.length);
+                header.putInt(MAGIC).putInt(VERSION).putInt(key.length).put(key);
+                header.putLong(peaks.getNumFrames()).putInt(peaks.getNumLevels());
+                header.flip();
+                writeFully(channel, header);
+
+                for (int level = 0; level < peaks.getNumLevels(); level++) {
+                    float[] min = peaks.getLevelMin(level);
+                    float[] max = peaks.getLevelMax(level);
+                    ByteBuffer data = ByteBuffer.allocate(4 + 4 * min.length);
+                    data.putInt(min.length);
+                    for (int i = 0; i < min.length; i++) {
+                        data.putShort(quantize((float) Math.floor(min[i] * QUANTIZATION)));
+                        data.putShort(quantize((float) Math.ceil(max[i] * QUANTIZATION)));
+                    }
+                    data.flip();
+                    writeFully(channel, data);
+                }
+            }
+            Files.move(temp, entry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            evict(entry.toFile());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Deletes the least recently used entries until the rest fit in
+    // MAX_CACHE_BYTES, never the one just written.
+    private static void evict(File keep) {
+        File[] entries = CACHE_DIR.listFiles((dir, name) -> name.endsWith(ENTRY_SUFFIX));
+        if (entries == null) {
+            return;
+        }
+        long totalBytes = 0;
+        long[] lastUsed = new long[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            totalBytes += entries[i].length();
+            lastUsed[i] = entries[i].lastModified();
+        }
+        Integer[] order = new Integer[entries.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(lastUsed[a], lastUsed[b]));
+
+        for (int i = 0; i < order.length && totalBytes > MAX_CACHE_BYTES; i++) {
+            File entry = entries[order[i]];
+            long bytes = entry.length();
+            if (!entry.equals(keep) && entry.delete()) {
+                totalBytes -= bytes;
+            }
+        }
+    }
+
+    private static short quantize(float value) {
+        return (short) Math.max(-QUANTIZATION, Math.min(QUANTIZATION, value));
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static File entryFor(File audioFile) {
+        String path = audioFile.getAbsolutePath();
+        return new File(CACHE_DIR, audioFile.getName() + "-" + Integer.toHexString(path.hashCode()) + ENTRY_SUFFIX);
+    }
+
+    private static byte[] keyOf(File audioFile, AudioFormat format) throws IOException {
+        byte[] path = audioFile.getAbsolutePath().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer key = ByteBuffer.allocate(path.length + 48);
+        key.put(path);
+        key.putLong(audioFile.length());
+        key.putLong(audioFile.lastModified());
+        key.putLong(sampledChecksum(audioFile));
+        key.putFloat(format.getSampleRate());
+        key.putInt(format.getSampleSizeInBits());
+        key.putInt(format.getChannels());
+        key.putInt(format.isBigEndian() ? 1 : 0);
+        key.putInt(format.getEncoding().toString().hashCode());
+        key.putInt(PeakPyramid.BASE_BUCKET);
+        return key.array();
+    }
+
+    // CRC of the first and last 64 KB and of 4 KB blocks at even strides in between.
+    private static long sampledChecksum(File audioFile) throws IOException {
+        CRC32 crc = new CRC32();
+        try (FileChannel channel = FileChannel.open(audioFile.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            updateChecksum(crc, channel, 0, EDGE_BLOCK_SIZE);
+            for (int block = 1; block <= SAMPLED_BLOCKS; block++) {
+                updateChecksum(crc, channel, size * block / (SAMPLED_BLOCKS + 1), SAMPLED_BLOCK_SIZE);
+            }
+            updateChecksum(crc, channel, Math.max(0, size - EDGE_BLOCK_SIZE), EDGE_BLOCK_SIZE);
+        }
+        return crc.getValue();
+    }
+
+    private static void updateChecksum(CRC32 crc, FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) > 0) {
+        }
+        buffer.flip();
+        crc.update(buffer);
+    }
+}
@@ -0,0 +1,315 @@
+package entite;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+import javax.sound.sampled.AudioFormat;
+
+
+// Min/max mipmap of a PCM buffer for drawing. Level 0 holds the extremes of
+// every BASE_BUCKET frames across all channels, and each level above merges
+// pairs of the one below, so any zoom reads at most two buckets per pixel.
+// Views finer than BASE_BUCKET frames per pixel decode the source directly.
+public class PeakPyramid {
+
+    public static final int BASE_BUCKET_SHIFT = 6;
+    public static final int BASE_BUCKET = 1 << BASE_BUCKET_SHIFT;
+    private static final int BUCKETS_PER_TASK = 256;
+
+    private volatile FrameSource source;
+    private final AudioFormat format;
+    private final long numFrames;
+    private final float[][] mins;
+    private final float[][] maxs;
+
+    private PeakPyramid(FrameSource source, AudioFormat format, long numFrames, float[][] mins, float[][] maxs) {
+        this.source = source;
+        this.format = format;
+        this.numFrames = numFrames;
+        this.mins = mins;
+        this.maxs = maxs;
+    }
+
+    public static PeakPyramid fromAudioData(byte[] audioData, AudioFormat format) {
+        return fromSource(SampleStore.wrap(audioData, format));
+    }
+
+    public static PeakPyramid fromSource(FrameSource source) {
+        AudioFormat format = source.getFormat();
+        long numFrames = source.getNumFrames();
+        int numBuckets = numBuckets(numFrames);
+        float[] min = new float[numBuckets];
+        float[] max = new float[numBuckets];
+
+        int numTasks = (numBuckets + BUCKETS_PER_TASK - 1) / BUCKETS_PER_TASK;
+        IntStream.range(0, numTasks).parallel().forEach(task ->
+            buildBaseLevel(source, format, numFrames, task * BUCKETS_PER_TASK,
+                    Math.min(numBuckets, (task + 1) * BUCKETS_PER_TASK), min, max));
+
+        return fromBaseLevel(source, format, numFrames, min, max);
+    }
+
+    static int numBuckets(long numFrames) {
+        return (int) Math.max(1, (numFrames + BASE_BUCKET - 1) / BASE_BUCKET);
+    }
+
+    // audioData backs views finer than BASE_BUCKET frames per pixel.
+    static PeakPyramid fromBaseLevel(byte[] audioData, AudioFormat format, float[] baseMin, float[] baseMax) {
+        return fromBaseLevel(SampleStore.wrap(audioData, format), format, audioData.length / format.getFrameSize(),
+                baseMin, baseMax);
+    }
+
+    // Levels as produced by getLevelMin/getLevelMax, e.g. read back from PeakCache.
+    static PeakPyramid fromLevels(AudioFormat format, long numFrames, float[][] mins, float[][] maxs) {
+        return new PeakPyramid(null, format, numFrames, mins, maxs);
+    }
+
+    static PeakPyramid fromBaseLevel(FrameSource source, AudioFormat format, long numFrames,
+                                             float[] baseMin, float[] baseMax) {
+        int numLevels = 1;
+        while ((baseMin.length - 1) >> (numLevels - 1) > 0) {
+            numLevels++;
+        }
+
+        float[][] mins = new float[numLevels][];
+        float[][] maxs = new float[numLevels][];
+        mins[0] = baseMin;
+        maxs[0] = baseMax;
+
+        for (int level = 1; level < numLevels; level++) {
+            float[] lowerMin = mins[level - 1];
+            float[] lowerMax = maxs[level - 1];
+            int count = (lowerMin.length + 1) / 2;
+            mins[level] = new float[count];
+            maxs[level] = new float[count];
+            for (int i = 0; i < count; i++) {
+                int right = Math.min(2 * i + 1, lowerMin.length - 1);
+                mins[level][i] = Math.min(lowerMin[2 * i], lowerMin[right]);
+                maxs[level][i] = Math.max(lowerMax[2 * i], lowerMax[right]);
+            }
+        }
+
+        return new PeakPyramid(source, format, numFrames, mins, maxs);
+    }
+
+    // Peaks of this audio after a gain stage that rounds and clamps to the
+    // format, as AmplitudeModifier does; outputData is that stage's output.
+    // Exact for a constant gain, including one in the unity band that the
+    // stage passes through unscaled. Under automation each bucket takes the
+    // gain at its two ends, which misses only turning points inside a bucket.
+    public PeakPyramid scaled(GainEnvelope envelope, byte[] outputData, AudioFormat outputFormat) {
+        float[] baseMin = mins[0];
+        float[] baseMax = maxs[0];
+        if (AmplitudeModifier.isUnity(envelope)) {
+            return fromBaseLevel(outputData, outputFormat, baseMin.clone(), baseMax.clone());
+        }
+        float[] min = new float[baseMin.length];
+        float[] max = new float[baseMax.length];
+        float fullScale = 1 << (outputFormat.getSampleSizeInBits() - 1);
+
+        for (int bucket = 0; bucket < baseMin.length; bucket++) {
+            long first = (long) bucket * BASE_BUCKET;
+            long last = Math.max(first, Math.min(numFrames, first + BASE_BUCKET) - 1);
+            float startGain = envelope.gainAt(first);
+            float endGain = envelope.gainAt(last);
+            min[bucket] = quantize(Math.min(baseMin[bucket] * startGain, baseMin[bucket] * endGain), fullScale);
+            max[bucket] = quantize(Math.max(baseMax[bucket] * startGain, baseMax[bucket] * endGain), fullScale);
+        }
+
+        return fromBaseLevel(outputData, outputFormat, min, max);
+    }
+
+    private static float quantize(float value, float fullScale) {
+        int sample = Math.round(value * fullScale);
+        return Math.min(fullScale - 1, Math.max(-fullScale, sample)) / fullScale;
+    }
+
+    // Coarse stand-in until the samples are loaded: windowMin/windowMax are the
+    // extremes of short windows read at even strides through the file, and
+    // every bucket takes the values of the window nearest to it. Views finer
+    // than BASE_BUCKET stay empty until refine() supplies the samples.
+    static PeakPyramid preview(long numFrames, AudioFormat format, float[] windowMin, float[] windowMax) {
+        int numBuckets = numBuckets(numFrames);
+        float[] min = new float[numBuckets];
+        float[] max = new float[numBuckets];
+        for (int bucket = 0; bucket < numBuckets; bucket++) {
+            int window = (int) ((long) bucket * windowMin.length / numBuckets);
+            min[bucket] = windowMin[window];
+            max[bucket] = windowMax[window];
+        }
+        return fromBaseLevel(null, format, numFrames, min, max);
+    }
+
+    public void update(byte[] audioData, long fromFrame, long toFrame) {
+        update(SampleStore.wrap(audioData, format), fromFrame, toFrame);
+    }
+
+    // In place: source, now this pyramid's source, changed in frames
+    // [fromFrame, toFrame). Views drawn from it need peaksChanged().
+    public void update(FrameSource source, long fromFrame, long toFrame) {
+        int fromBucket = (int) (Math.max(0, fromFrame) >> BASE_BUCKET_SHIFT);
+        int toBucket = Math.min(mins[0].length, numBuckets(Math.min(numFrames, toFrame)));
+        if (fromBucket < toBucket) {
+            refine(source, fromBucket, toBucket);
+        }
+    }
+
+    // Supplies the samples of a pyramid built without them.
+    void setSource(FrameSource source) {
+        this.source = source;
+    }
+
+    // Recomputes buckets [fromBucket, toBucket) from source, which must now
+    // hold those frames, and the levels above them. Safe to call from several
+    // loader threads; readers may briefly see a mix of old and new buckets.
+    void refine(FrameSource source, int fromBucket, int toBucket) {
+        this.source = source;
+        buildBaseLevel(source, format, numFrames, fromBucket, toBucket, mins[0], maxs[0]);
+
+        synchronized (this) {
+            int from = fromBucket;
+            int to = toBucket;
+            for (int level = 1; level < mins.length; level++) {
+                float[] lowerMin = mins[level - 1];
+                float[] lowerMax = maxs[level - 1];
+                from >>= 1;
+                to = (to + 1) >> 1;
+                for (int i = from; i < to; i++) {
+                    int right = Math.min(2 * i + 1, lowerMin.length - 1);
+                    mins[level][i] = Math.min(lowerMin[2 * i], lowerMin[right]);
+                    maxs[level][i] = Math.max(lowerMax[2 * i], lowerMax[right]);
+                }
+            }
+        }
+    }
+
+    private static void buildBaseLevel(FrameSource source, AudioFormat format, long numFrames,
+                                       int fromBucket, int toBucket, float[] min, float[] max) {
+        int numChannels = format.getChannels();
+        long fromFrame = (long) fromBucket * BASE_BUCKET;
+        int frames = (int) Math.max(0, Math.min(numFrames, (long) toBucket * BASE_BUCKET) - fromFrame);
+        float[][] samples = new float[numChannels][frames];
+        source.readFrames(fromFrame, samples, 0, frames);
+
+        for (int bucket = fromBucket; bucket < toBucket; bucket++) {
+            int start = (bucket - fromBucket) * BASE_BUCKET;
+            int end = Math.min(frames, start + BASE_BUCKET);
+            float low = 0.0f;
+            float high = 0.0f;
+            if (start < end) {
+                low = Float.MAX_VALUE;
+                high = -Float.MAX_VALUE;
+            }
+            for (float[] channel : samples) {
+                for (int i = start; i < end; i++) {
+                    low = Math.min(low, channel[i]);
+                    high = Math.max(high, channel[i]);
+                }
+            }
+            min[bucket] = low;
+            max[bucket] = high;
+        }
+    }
+
+    public long getNumFrames() {
+        return numFrames;
+    }
+
+    public int getNumLevels() {
+        return mins.length;
+    }
+
+    public int getBucketFrames(int level) {
+        return BASE_BUCKET << level;
+    }
+
+    float[] getLevelMin(int level) {
+        return mins[level];
+    }
+
+    float[] getLevelMax(int level) {
+        return maxs[level];
+    }
+
+    // Widens min[index]/max[index] to the base buckets overlapping frames
+    // [fromFrame, toFrame).
+    void bound(long fromFrame, long toFrame, float[] min, float[] max, int index) {
+        int last = Math.min(mins[0].length, numBuckets(toFrame));
+        for (int bucket = (int) (fromFrame >> BASE_BUCKET_SHIFT); bucket < last; bucket++) {
+            min[index] = Math.min(min[index], mins[0][bucket]);
+            max[index] = Math.max(max[index], maxs[0][bucket]);
+        }
+    }
+
+    // Fills min/max for `width` pixel columns of framesPerPixel frames each,
+    // starting at startFrame. Columns past the end get min > max. Above
+    // BASE_BUCKET frames per pixel the column edges snap to the nearest bucket
+    // of the coarsest level that still has at least one bucket per pixel.
+    public void fillColumns(double startFrame, double framesPerPixel, float[] min, float[] max, int width) {
+        if (framesPerPixel < BASE_BUCKET) {
+            fillColumnsFromSource(startFrame, framesPerPixel, min, max, width);
+            return;
+        }
+
+        int level = 0;
+        while (level + 1 < mins.length && getBucketFrames(level + 1) <= framesPerPixel) {
+            level++;
+        }
+        float[] levelMin = mins[level];
+        float[] levelMax = maxs[level];
+        double bucketFrames = getBucketFrames(level);
+        long lastBucket = (numFrames + (long) bucketFrames - 1) / (long) bucketFrames;
+
+        for (int x = 0; x < width; x++) {
+            long from = Math.max(0, Math.round((startFrame + x * framesPerPixel) / bucketFrames));
+            long to = Math.min(lastBucket, Math.round((startFrame + (x + 1) * framesPerPixel) / bucketFrames));
+            float low = 1.0f;
+            float high = -1.0f;
+            if (from < to) {
+                low = levelMin[(int) from];
+                high = levelMax[(int) from];
+                for (int i = (int) from + 1; i < to; i++) {
+                    low = Math.min(low, levelMin[i]);
+                    high = Math.max(high, levelMax[i]);
+                }
+            }
+            min[x] = low;
+            max[x] = high;
+        }
+    }
+
+    private void fillColumnsFromSource(double startFrame, double framesPerPixel, float[] min, float[] max, int width) {
+        FrameSource source = this.source;
+        if (source == null) {
+            Arrays.fill(min, 0, width, 1.0f);
+            Arrays.fill(max, 0, width, -1.0f);
+            return;
+        }
+        
+        int numChannels = format.getChannels();
+        long first = Math.max(0, (long) Math.floor(startFrame));
+        long last = Math.min(numFrames, (long) Math.floor(startFrame + width * framesPerPixel) + 1);
+        int frames = (int) Math.max(0, last - first);
+        float[][] samples = new float[numChannels][frames];
+        source.readFrames(first, samples, 0, frames);
+
+        for (int x = 0; x < width; x++) {
+            long from = Math.max(first, (long) Math.floor(startFrame + x * framesPerPixel));
+            long to = Math.min(last, Math.max(from + 1, (long) Math.floor(startFrame + (x + 1) * framesPerPixel)));
+            float low = 1.0f;
+            float high = -1.0f;
+            if (from < to) {
+                low = Float.MAX_VALUE;
+                high = -Float.MAX_VALUE;
+                for (float[] channel : samples) {
+                    for (long i = from; i < to; i++) {
+                        low = Math.min(low, channel[(int) (i - first)]);
+                        high = Math.max(high, channel[(int) (i - first)]);
+                    }
+                }
+            }
+            min[x] = low;
+            max[x] = high;
+        }
+    }
+}
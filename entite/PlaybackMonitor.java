@@ -0,0 +1,63 @@
+package entite;
+
+import java.lang.invoke.VarHandle;
+
+
+// Playback position and per-channel block levels, written by the one player
+// thread and sampled by the GUI. A seqlock: the writer makes the version odd,
+// writes, then makes it even again; a reader copies and retries until it saw
+// the same even version before and after. Neither side allocates or blocks.
+public class PlaybackMonitor {
+
+    private volatile long version = 0;
+    private volatile boolean finished = false;
+    private long frame = 0;
+    private final float[] peak;
+    private final float[] rms;
+
+    public PlaybackMonitor(int numChannels) {
+        peak = new float[numChannels];
+        rms = new float[numChannels];
+    }
+
+    public int getNumChannels() {
+        return peak.length;
+    }
+
+    // Only the player thread may call this.
+    void publish(long frame, float[] blockPeak, float[] blockRms) {
+        long v = version;
+        version = v + 1;
+        VarHandle.storeStoreFence();
+        this.frame = frame;
+        System.arraycopy(blockPeak, 0, peak, 0, peak.length);
+        System.arraycopy(blockRms, 0, rms, 0, rms.length);
+        version = v + 2;
+    }
+
+    void finish() {
+        finished = true;
+    }
+
+    // Copies the latest levels into peakOut/rmsOut and returns the frame
+    // being heard.
+    public long read(float[] peakOut, float[] rmsOut) {
+        while (true) {
+            long before = version;
+            if ((before & 1) == 0) {
+                long result = frame;
+                System.arraycopy(peak, 0, peakOut, 0, peak.length);
+                System.arraycopy(rms, 0, rmsOut, 0, rms.length);
+                VarHandle.loadLoadFence();
+                if (version == before) {
+                    return result;
+                }
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+}
@@ -0,0 +1,244 @@
+package entite;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.stream.IntStream;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+import util.AudioUtils;
+
+
+// Loads a PCM WAV file so the waveform can be shown long before the load ends:
+// the data chunk is memory-mapped, a coarse pyramid is built from short strided
+// reads, and the full-resolution buckets are then filled in chunk by chunk
+// while the samples are copied out of the mapping into a SampleStore. Neither
+// the mapping nor the store is one array, so the data chunk may exceed 2 GB.
+// A file seen before takes its full pyramid from PeakCache instead. Other
+// files fall back to WavFileHandler.loadWavFile.
+public class ProgressiveWavLoader {
+
+    private static final int PREVIEW_WINDOWS = 2048;
+    private static final int PREVIEW_WINDOW_FRAMES = 256;
+    private static final int CHUNK_BUCKETS = 4096;
+    private static final long NOTIFY_INTERVAL_NANOS = 50_000_000L;
+    // A single mapping cannot exceed 2 GB.
+    private static final long MAX_SEGMENT_BYTES = 1L << 30;
+
+    // Both callbacks arrive on loader threads.
+    public interface Listener {
+        void onPreview(PeakPyramid peaks);
+
+        void onPeaksRefined(long fromFrame, long toFrame);
+    }
+
+    private final Listener listener;
+    private long pendingFrom = Long.MAX_VALUE;
+    private long pendingTo = Long.MIN_VALUE;
+    private long lastNotify = System.nanoTime();
+
+    private ProgressiveWavLoader(Listener listener) {
+        this.listener = listener;
+    }
+
+    public static WavFileHandler.AudioLoadResult load(File file, Listener listener)
+            throws UnsupportedAudioFileException, IOException {
+        AudioFileFormat fileFormat = AudioSystem.getAudioFileFormat(file);
+        AudioFormat format = fileFormat.getFormat();
+        AudioFormat.Encoding encoding = format.getEncoding();
+        boolean isPcm = encoding.equals(AudioFormat.Encoding.PCM_SIGNED)
+                || encoding.equals(AudioFormat.Encoding.PCM_UNSIGNED);
+        int bits = format.getSampleSizeInBits();
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long[] dataChunk = fileFormat.getType() == AudioFileFormat.Type.WAVE && isPcm
+                    && (bits == 8 || bits == 16 || bits == 24) ? findDataChunk(channel) : null;
+            if (dataChunk != null) {
+                return new ProgressiveWavLoader(listener).load(file, channel, format, dataChunk[0], dataChunk[1]);
+            }
+        }
+
+        WavFileHandler.AudioLoadResult result = WavFileHandler.loadWavFile(file);
+        listener.onPreview(result.getPeakPyramid());
+        return result;
+    }
+
+    // { offset, length } of the "data" chunk, or null if the RIFF layout is unexpected.
+    private static long[] findDataChunk(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+        if (channel.read(header, 0) < 12 || header.getInt(0) != 0x46464952 || header.getInt(8) != 0x45564157) {
+            return null;
+        }
+
+        long position = 12;
+        ByteBuffer chunkHeader = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        while (position + 8 <= channel.size()) {
+            chunkHeader.clear();
+            if (channel.read(chunkHeader, position) < 8) {
+                return null;
+            }
+            long size = chunkHeader.getInt(4) & 0xFFFFFFFFL;
+            if (chunkHeader.getInt(0) == 0x61746164) {
+                return new long[] { position + 8, Math.min(size, channel.size() - position - 8) };
+            }
+            position += 8 + size + (size & 1);
+        }
+        return null;
+    }
+
+    private WavFileHandler.AudioLoadResult load(File file, FileChannel channel, AudioFormat format,
+                                                long offset, long length)
+            throws IOException {
+        int frameSize = format.getFrameSize();
+        long numFrames = length / frameSize;
+        MappedData mapped = new MappedData(channel, offset, numFrames, frameSize);
+        SampleStore store = SampleStore.silence(format, numFrames);
+
+        int numBuckets = PeakPyramid.numBuckets(numFrames);
+        int numChunks = (numBuckets + CHUNK_BUCKETS - 1) / CHUNK_BUCKETS;
+        PeakPyramid cached = PeakCache.load(file, format);
+        if (cached != null && cached.getNumFrames() == numFrames) {
+            listener.onPreview(cached);
+            IntStream.range(0, numChunks).parallel().forEach(chunk ->
+                mapped.copyTo(store, chunkStart(chunk, numFrames), chunkStart(chunk + 1, numFrames)));
+            cached.setSource(store);
+            listener.onPeaksRefined(0, numFrames);
+            return loadResult(store, cached);
+        }
+
+        PeakPyramid peaks = buildPreview(mapped, format, numFrames);
+        listener.onPreview(peaks);
+
+        // Chunks cover whole SampleStore chunks, so each task writes its own.
+        IntStream.range(0, numChunks).parallel().forEach(chunk -> {
+            long fromFrame = chunkStart(chunk, numFrames);
+            long toFrame = chunkStart(chunk + 1, numFrames);
+            mapped.copyTo(store, fromFrame, toFrame);
+
+            peaks.refine(store, chunk * CHUNK_BUCKETS, Math.min(numBuckets, (chunk + 1) * CHUNK_BUCKETS));
+            refined(fromFrame, toFrame, false);
+        });
+        refined(0, 0, true);
+        PeakCache.store(file, format, peaks);
+
+        return loadResult(store, peaks);
+    }
+
+    private static long chunkStart(int chunk, long numFrames) {
+        return Math.min(numFrames, (long) chunk * CHUNK_BUCKETS * PeakPyramid.BASE_BUCKET);
+    }
+
+    // Everything else derives from the full pyramid, so beyond the copy out of
+    // the mapping the samples are never read again.
+    private static WavFileHandler.AudioLoadResult loadResult(SampleStore store, PeakPyramid peaks) {
+        BlockPeakIndex blockPeakIndex = BlockPeakIndex.fromPeakPyramid(peaks, store.getFormat().getChannels());
+        return new WavFileHandler.AudioLoadResult(store, blockPeakIndex, peaks);
+    }
+
+    private static PeakPyramid buildPreview(MappedData mapped, AudioFormat format, long numFrames) {
+        int frameSize = format.getFrameSize();
+        int windows = (int) Math.max(1, Math.min(PREVIEW_WINDOWS, numFrames / PREVIEW_WINDOW_FRAMES));
+        int windowFrames = (int) Math.min(PREVIEW_WINDOW_FRAMES, numFrames);
+        float[] windowMin = new float[windows];
+        float[] windowMax = new float[windows];
+        byte[] window = new byte[windowFrames * frameSize];
+        float[][] samples = new float[format.getChannels()][windowFrames];
+
+        for (int w = 0; w < windows; w++) {
+            long start = numFrames * w / windows;
+            mapped.read(start, window, windowFrames);
+            AudioUtils.decodeFrames(window, format, 0, samples, 0, windowFrames);
+
+            float low = 0.0f;
+            float high = 0.0f;
+            for (float[] channelSamples : samples) {
+                for (int i = 0; i < windowFrames; i++) {
+                    low = Math.min(low, channelSamples[i]);
+                    high = Math.max(high, channelSamples[i]);
+                }
+            }
+            windowMin[w] = low;
+            windowMax[w] = high;
+        }
+
+        return PeakPyramid.preview(numFrames, format, windowMin, windowMax);
+    }
+
+    // The data chunk as read-only mappings of at most MAX_SEGMENT_BYTES each,
+    // addressed by long frame index.
+    private static final class MappedData {
+        private final int frameSize;
+        private final long segmentFrames;
+        private final MappedByteBuffer[] segments;
+
+        MappedData(FileChannel channel, long offset, long numFrames, int frameSize) throws IOException {
+            this.frameSize = frameSize;
+            this.segmentFrames = MAX_SEGMENT_BYTES / frameSize;
+            this.segments = new MappedByteBuffer[(int) ((numFrames + segmentFrames - 1) / segmentFrames)];
+            for (int i = 0; i < segments.length; i++) {
+                long frames = Math.min(segmentFrames, numFrames - i * segmentFrames);
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+                        offset + i * segmentFrames * frameSize, frames * frameSize);
+            }
+        }
+
+        void read(long frame, byte[] target, int frames) {
+            int done = 0;
+            while (done < frames) {
+                ByteBuffer source = at(frame + done);
+                int count = Math.min(frames - done, source.remaining() / frameSize);
+                source.get(target, done * frameSize, count * frameSize);
+                done += count;
+            }
+        }
+
+        // Frames [fromFrame, toFrame) into the same frames of store.
+        void copyTo(SampleStore store, long fromFrame, long toFrame) {
+            long frame = fromFrame;
+            while (frame < toFrame) {
+                ByteBuffer source = at(frame);
+                int count = (int) Math.min(toFrame - frame, source.remaining() / frameSize);
+                store.writeBytes(frame, source, count);
+                frame += count;
+            }
+        }
+
+        // A buffer of its own positioned at frame, running to the end of its segment.
+        private ByteBuffer at(long frame) {
+            ByteBuffer source = segments[(int) (frame / segmentFrames)].duplicate();
+            source.position((int) (frame % segmentFrames * frameSize));
+            return source;
+        }
+    }
+
+    // Coalesces refined ranges so the listener hears about them at most every
+    // NOTIFY_INTERVAL_NANOS, plus once at the end.
+    private void refined(long fromFrame, long toFrame, boolean last) {
+        long from;
+        long to;
+        synchronized (this) {
+            if (fromFrame < toFrame) {
+                pendingFrom = Math.min(pendingFrom, fromFrame);
+                pendingTo = Math.max(pendingTo, toFrame);
+            }
+            long now = System.nanoTime();
+            if (pendingFrom >= pendingTo || (!last && now - lastNotify < NOTIFY_INTERVAL_NANOS)) {
+                return;
+            }
+            from = pendingFrom;
+            to = pendingTo;
+            pendingFrom = Long.MAX_VALUE;
+            pendingTo = Long.MIN_VALUE;
+            lastNotify = now;
+        }
+        listener.onPeaksRefined(from, to);
+    }
+}
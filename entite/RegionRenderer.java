@@ -0,0 +1,116 @@
+package entite;
+
+import java.util.Arrays;
+
+import javax.sound.sampled.AudioFormat;
+
+import util.AudioUtils;
+
+
+// Runs a processing chain over a frame range of a buffer instead of all of it.
+// The chain sees the range plus contextFrames on either side, clamped to the
+// buffer, so look-ahead and windowed stages have settled by the time the range
+// starts; only the range itself is kept. The slice starts on a multiple of
+// alignFrames, so block-based stages see the same block grid as for the whole
+// buffer. crossfade() blends the result's edges into the surrounding audio.
+public final class RegionRenderer {
+
+    public interface Chain {
+        // slice holds frames [sliceStart, sliceStart + slice frames) of the
+        // source; the result must have the same length.
+        byte[] process(byte[] slice, long sliceStart);
+    }
+
+    private RegionRenderer() {
+    }
+
+    public static byte[] render(byte[] source, AudioFormat format, long fromFrame, long toFrame,
+                                int contextFrames, int alignFrames, Chain chain) {
+        return render(source, format, fromFrame, toFrame, contextFrames, alignFrames, null, chain);
+    }
+
+    public static byte[] render(byte[] source, AudioFormat format, long fromFrame, long toFrame,
+                                int contextFrames, int alignFrames, BufferPool pool, Chain chain) {
+        return render(SampleStore.wrap(source, format), fromFrame, toFrame, contextFrames, alignFrames, pool, chain);
+    }
+
+    public static byte[] render(FrameSource source, long fromFrame, long toFrame,
+                                int contextFrames, int alignFrames, Chain chain) {
+        return render(source, fromFrame, toFrame, contextFrames, alignFrames, null, chain);
+    }
+
+    // Returns the processed frames [fromFrame, toFrame). With a pool, the slice
+    // and the result are leased from it, and the slice and the chain's output
+    // go back to it once the range is copied out, so the chain may return a
+    // buffer leased from the same pool but must not keep either; the caller
+    // may release the result once done with it.
+    public static byte[] render(FrameSource source, long fromFrame, long toFrame,
+                                int contextFrames, int alignFrames, BufferPool pool, Chain chain) {
+        int frameSize = source.getFormat().getFrameSize();
+        long numFrames = source.getNumFrames();
+        if (fromFrame < 0 || toFrame > numFrames || fromFrame >= toFrame) {
+            throw new IllegalArgumentException(
+                    "Invalid frame range [" + fromFrame + ", " + toFrame + ") for " + numFrames + " frames");
+        }
+
+        long sliceStart = Math.max(0, fromFrame - contextFrames);
+        sliceStart -= sliceStart % Math.max(1, alignFrames);
+        long sliceEnd = Math.min(numFrames, toFrame + contextFrames);
+        byte[] slice = source.toByteArray(sliceStart, sliceEnd, pool);
+        byte[] processed = chain.process(slice, sliceStart);
+        if (pool == null) {
+            return Arrays.copyOfRange(processed,
+                    (int) ((fromFrame - sliceStart) * frameSize), (int) ((toFrame - sliceStart) * frameSize));
+        }
+
+        byte[] region = pool.leaseBytes((int) ((toFrame - fromFrame) * frameSize));
+        System.arraycopy(processed, (int) ((fromFrame - sliceStart) * frameSize), region, 0, region.length);
+        pool.release(slice);
+        if (processed != slice) {
+            pool.release(processed);
+        }
+        return region;
+    }
+
+    // Blends original's own audio into the edges of region, which is to
+    // replace original from fromFrame on: a crossfade from the original over
+    // the first fadeFrames and back to it over the last ones. The fades are
+    // equal-power (sine/cosine), so uncorrelated material keeps its level
+    // through the joins. fadeFrames shrinks to fit short regions.
+    public static void crossfade(FrameSource original, byte[] region, long fromFrame, int fadeFrames) {
+        AudioFormat format = original.getFormat();
+        int regionFrames = region.length / format.getFrameSize();
+        if (fromFrame < 0 || fromFrame + regionFrames > original.getNumFrames()) {
+            throw new IllegalArgumentException("Region of " + regionFrames + " frames at " + fromFrame
+                    + " does not fit in " + original.getNumFrames() + " frames");
+        }
+
+        int fade = Math.max(0, Math.min(fadeFrames, regionFrames / 2));
+        if (fade == 0) {
+            return;
+        }
+
+        int numChannels = format.getChannels();
+        float[][] before = new float[numChannels][fade];
+        float[][] processed = new float[numChannels][fade];
+        float[] fadeIn = new float[fade];
+        for (int i = 0; i < fade; i++) {
+            fadeIn[i] = (float) Math.sin(0.5 * Math.PI * (i + 0.5) / fade);
+        }
+
+        for (int edge = 0; edge < 2; edge++) {
+            boolean in = edge == 0;
+            int offset = in ? 0 : regionFrames - fade;
+            original.readFrames(fromFrame + offset, before, 0, fade);
+            AudioUtils.decodeFrames(region, format, offset, processed, 0, fade);
+            for (int channel = 0; channel < numChannels; channel++) {
+                for (int i = 0; i < fade; i++) {
+                    float toProcessed = in ? fadeIn[i] : fadeIn[fade - 1 - i];
+                    float toOriginal = in ? fadeIn[fade - 1 - i] : fadeIn[i];
+                    processed[channel][i] = before[channel][i] * toOriginal + processed[channel][i] * toProcessed;
+                }
+            }
+            AudioUtils.encodeFrames(processed, 0, fade, region, format, offset);
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package entite;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+// Planar float samples kept outside the Java heap, in direct or file-mapped
+// buffers of SEGMENT_FRAMES frames per channel, addressed by long frame index.
+// Large decoded or intermediate audio held here doesn't count against the heap
+// or get copied by the collector. Access is in bulk through caller-owned
+// float[] blocks, so the loops that process a block stay plain array loops.
+// Buffers belong to an Arena and become unusable when it is closed.
+public final class SampleBuffer {
+
+    public static final int SEGMENT_FRAMES = 1 << 24;
+    // Frames per bulk access in the block loops over a buffer.
+    public static final int BLOCK_FRAMES = 8192;
+
+    private final Arena arena;
+    private final long numFrames;
+    // segments[channel][i] holds frames [i * SEGMENT_FRAMES, (i + 1) * SEGMENT_FRAMES).
+    private final FloatBuffer[][] segments;
+
+    private SampleBuffer(Arena arena, FloatBuffer[][] segments, long numFrames) {
+        this.arena = arena;
+        this.segments = segments;
+        this.numFrames = numFrames;
+    }
+
+    public int getNumChannels() {
+        return segments.length;
+    }
+
+    public long getNumFrames() {
+        return numFrames;
+    }
+
+    // Copies frames [frame, frame + count) of channel into target from offset on.
+    public void get(int channel, long frame, float[] target, int offset, int count) {
+        checkRange(frame, count);
+        FloatBuffer[] channelSegments = segments[channel];
+        int done = 0;
+        while (done < count) {
+            long position = frame + done;
+            int within = (int) (position % SEGMENT_FRAMES);
+            int length = Math.min(count - done, SEGMENT_FRAMES - within);
+            channelSegments[(int) (position / SEGMENT_FRAMES)].get(within, target, offset + done, length);
+            done += length;
+        }
+    }
+
+    public void put(int channel, long frame, float[] source, int offset, int count) {
+        checkRange(frame, count);
+        FloatBuffer[] channelSegments = segments[channel];
+        int done = 0;
+        while (done < count) {
+            long position = frame + done;
+            int within = (int) (position % SEGMENT_FRAMES);
+            int length = Math.min(count - done, SEGMENT_FRAMES - within);
+            channelSegments[(int) (position / SEGMENT_FRAMES)].put(within, source, offset + done, length);
+            done += length;
+        }
+    }
+
+    // Like get, for a window that may reach past either end of the buffer:
+    // frames outside it read as zero.
+    public void getPadded(int channel, long frame, float[] target, int offset, int count) {
+        long from = Math.max(0, frame);
+        long to = Math.min(numFrames, frame + count);
+        int lead = (int) (from - frame);
+        Arrays.fill(target, offset, offset + count, 0.0f);
+        if (from < to) {
+            get(channel, from, target, offset + lead, (int) (to - from));
+        }
+    }
+
+    // All channels at once, target[channel][offset..offset + frames).
+    public void readFrames(long frame, float[][] target, int offset, int frames) {
+        for (int channel = 0; channel < segments.length; channel++) {
+            get(channel, frame, target[channel], offset, frames);
+        }
+    }
+
+    public void writeFrames(long frame, float[][] source, int offset, int frames) {
+        for (int channel = 0; channel < segments.length; channel++) {
+            put(channel, frame, source[channel], offset, frames);
+        }
+    }
+
+    private void checkRange(long frame, int count) {
+        arena.checkOpen();
+        if (frame < 0 || count < 0 || frame + count > numFrames) {
+            throw new IllegalArgumentException(
+                    "Invalid frame range [" + frame + ", " + (frame + count) + ") for " + numFrames + " frames");
+        }
+    }
+
+    // Owns the memory of the buffers allocated from it. Closing the arena makes
+    // them unusable; direct memory goes back when the collector drops the
+    // buffer objects, and the files behind mapped buffers are deleted at once.
+    // Allocation and close are thread-safe; reads racing a close may fail.
+    public static final class Arena implements AutoCloseable {
+
+        public static final long DIRECT_LIMIT = Long.getLong("samplebuffer.directlimit", 512L << 20);
+
+        // Null for direct memory.
+        private final File directory;
+        private final List<Path> files = new ArrayList<>();
+        private volatile boolean closed;
+
+        private Arena(File directory) {
+            this.directory = directory;
+        }
+
+        public static Arena offHeap() {
+            return new Arena(null);
+        }
+
+        // Buffers backed by temporary files in directory, or in the default
+        // temporary directory when it is null, so the OS can page them out.
+        public static Arena fileBacked(File directory) {
+            return new Arena(directory != null ? directory : new File(System.getProperty("java.io.tmpdir")));
+        }
+
+        // Direct memory for up to DIRECT_LIMIT bytes of buffers, a temporary
+        // file past it.
+        public static Arena forBytes(long bytes) {
+            return bytes > DIRECT_LIMIT ? fileBacked(null) : offHeap();
+        }
+
+        public boolean isFileBacked() {
+            return directory != null;
+        }
+
+        // Zero-filled.
+        public synchronized SampleBuffer allocate(int numChannels, long numFrames) {
+            checkOpen();
+            if (numChannels < 0 || numFrames < 0) {
+                throw new IllegalArgumentException("Invalid buffer size: " + numChannels + " x " + numFrames);
+            }
+            long numSegments = (numFrames + SEGMENT_FRAMES - 1) / SEGMENT_FRAMES;
+            if (numSegments > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Too many frames: " + numFrames);
+            }
+            FloatBuffer[][] segments = new FloatBuffer[numChannels][(int) numSegments];
+            try {
+                if (directory == null) {
+                    for (FloatBuffer[] channelSegments : segments) {
+                        for (int i = 0; i < channelSegments.length; i++) {
+                            long bytes = segmentFrames(numFrames, i) * Float.BYTES;
+                            channelSegments[i] = ByteBuffer.allocateDirect((int) bytes)
+                                    .order(ByteOrder.nativeOrder()).asFloatBuffer();
+                        }
+                    }
+                } else {
+                    mapSegments(segments, numFrames);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot back sample buffer with a file", e);
+            }
+            return new SampleBuffer(this, segments, numFrames);
+        }
+
+        // One file per buffer; a mapping stays valid after its channel closes.
+        private void mapSegments(FloatBuffer[][] segments, long numFrames) throws IOException {
+            Path file = Files.createTempFile(directory.toPath(), "samples", ".raw");
+            // Arenas dropped without being closed leave their files until exit.
+            file.toFile().deleteOnExit();
+            files.add(file);
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                long position = 0;
+                for (FloatBuffer[] channelSegments : segments) {
+                    for (int i = 0; i < channelSegments.length; i++) {
+                        long bytes = segmentFrames(numFrames, i) * Float.BYTES;
+                        channelSegments[i] = channel.map(FileChannel.MapMode.READ_WRITE, position, bytes)
+                                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+                        position += bytes;
+                    }
+                }
+            }
+        }
+
+        private static long segmentFrames(long numFrames, int segment) {
+            return Math.min(SEGMENT_FRAMES, numFrames - (long) segment * SEGMENT_FRAMES);
+        }
+
+        private void checkOpen() {
+            if (closed) {
+                throw new IllegalStateException("Sample arena has been closed");
+            }
+        }
+
+        @Override
+        public synchronized void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            for (Path file : files) {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException e) {
+                    // Still mapped on some platforms; try again at exit.
+                    file.toFile().deleteOnExit();
+                }
+            }
+            files.clear();
+        }
+    }
+}
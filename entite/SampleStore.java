@@ -0,0 +1,248 @@
+package entite;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sound.sampled.AudioFormat;
+
+import util.AudioUtils;
+
+
+// PCM audio in CHUNK_FRAMES-frame chunks addressed by long frame index, so no
+// single array bounds its length. Chunks are reference counted and shared
+// between a store and its snapshots; a write copies only the chunk it lands
+// in when someone else still holds it. A snapshot therefore costs one pointer
+// per chunk, and diverging from it costs the chunks actually touched.
+// Chunks keep the source format rather than floats, so wrapping a loaded
+// buffer adds no memory; readFrames/writeFrames convert at the edges.
+// A store is not safe for concurrent writes to the same chunk, but threads
+// may fill disjoint chunks of it, and its snapshots are independent and may
+// be written from other threads.
+public final class SampleStore implements FrameSource {
+
+    public static final int CHUNK_FRAMES = 1 << 16;
+
+    private static final class Chunk {
+        final byte[] data;
+        final int offset;
+        // Wrapped chunks view an array owned by the caller and are never
+        // written in place, whatever their count.
+        final boolean borrowed;
+        final AtomicInteger refs = new AtomicInteger(1);
+
+        Chunk(byte[] data, int offset, boolean borrowed) {
+            this.data = data;
+            this.offset = offset;
+            this.borrowed = borrowed;
+        }
+    }
+
+    private final AudioFormat format;
+    private final int frameSize;
+    private final long numFrames;
+    // A null chunk is silence that has never been written.
+    private Chunk[] chunks;
+
+    private SampleStore(AudioFormat format, long numFrames, Chunk[] chunks) {
+        this.format = format;
+        this.frameSize = format.getFrameSize();
+        this.numFrames = numFrames;
+        this.chunks = chunks;
+    }
+
+    // numFrames of silence; chunks are allocated as they are written.
+    public static SampleStore silence(AudioFormat format, long numFrames) {
+        if (numFrames < 0) {
+            throw new IllegalArgumentException("Negative length: " + numFrames);
+        }
+        return new SampleStore(format, numFrames, new Chunk[numChunks(numFrames)]);
+    }
+
+    // A view of audioData without copying it. audioData itself is never
+    // written through the store, but changes made to it directly show
+    // through until the chunk holding them is copied by a write.
+    public static SampleStore wrap(byte[] audioData, AudioFormat format) {
+        int frameSize = format.getFrameSize();
+        long numFrames = audioData.length / frameSize;
+        Chunk[] chunks = new Chunk[numChunks(numFrames)];
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = new Chunk(audioData, i * CHUNK_FRAMES * frameSize, true);
+        }
+        return new SampleStore(format, numFrames, chunks);
+    }
+
+    private static int numChunks(long numFrames) {
+        long count = (numFrames + CHUNK_FRAMES - 1) / CHUNK_FRAMES;
+        if (count > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many frames: " + numFrames);
+        }
+        return (int) count;
+    }
+
+    // Shares every chunk with this store; neither sees the other's later writes.
+    public SampleStore snapshot() {
+        Chunk[] source = chunks();
+        for (Chunk chunk : source) {
+            if (chunk != null) {
+                chunk.refs.incrementAndGet();
+            }
+        }
+        return new SampleStore(format, numFrames, source.clone());
+    }
+
+    // Drops this store's hold on its chunks, so the snapshots still sharing
+    // them can write in place. The store cannot be used afterwards.
+    public void release() {
+        Chunk[] source = chunks();
+        chunks = null;
+        for (Chunk chunk : source) {
+            if (chunk != null) {
+                chunk.refs.decrementAndGet();
+            }
+        }
+    }
+
+    @Override
+    public AudioFormat getFormat() {
+        return format;
+    }
+
+    @Override
+    public long getNumFrames() {
+        return numFrames;
+    }
+
+    @Override
+    public void readBytes(long frame, byte[] target, int offset, int frames) {
+        checkRange(frame, frames);
+        Chunk[] source = chunks();
+        int done = 0;
+        while (done < frames) {
+            long position = frame + done;
+            int index = (int) (position / CHUNK_FRAMES);
+            int within = (int) (position % CHUNK_FRAMES);
+            int count = Math.min(frames - done, CHUNK_FRAMES - within);
+            Chunk chunk = source[index];
+            int targetIndex = offset + done * frameSize;
+            if (chunk == null) {
+                Arrays.fill(target, targetIndex, targetIndex + count * frameSize, silentByte());
+            } else {
+                System.arraycopy(chunk.data, chunk.offset + within * frameSize, target, targetIndex, count * frameSize);
+            }
+            done += count;
+        }
+    }
+
+    @Override
+    public void readFrames(long frame, float[][] target, int offset, int frames) {
+        checkRange(frame, frames);
+        Chunk[] source = chunks();
+        int done = 0;
+        while (done < frames) {
+            long position = frame + done;
+            int index = (int) (position / CHUNK_FRAMES);
+            int within = (int) (position % CHUNK_FRAMES);
+            int count = Math.min(frames - done, CHUNK_FRAMES - within);
+            Chunk chunk = source[index];
+            if (chunk == null) {
+                for (float[] channel : target) {
+                    Arrays.fill(channel, offset + done, offset + done + count, 0.0f);
+                }
+            } else {
+                AudioUtils.decodeFrames(chunk.data, format, chunk.offset / frameSize + within,
+                        target, offset + done, count);
+            }
+            done += count;
+        }
+    }
+
+    public void writeBytes(long frame, byte[] source, int offset, int frames) {
+        checkRange(frame, frames);
+        int done = 0;
+        while (done < frames) {
+            long position = frame + done;
+            int index = (int) (position / CHUNK_FRAMES);
+            int within = (int) (position % CHUNK_FRAMES);
+            int count = Math.min(frames - done, CHUNK_FRAMES - within);
+            Chunk chunk = writableChunk(index);
+            System.arraycopy(source, offset + done * frameSize, chunk.data, chunk.offset + within * frameSize,
+                    count * frameSize);
+            done += count;
+        }
+    }
+
+    // As above from source's position on, which advances past the frames
+    // read, e.g. to fill a store from a mapped file without an array the size
+    // of the whole range.
+    public void writeBytes(long frame, ByteBuffer source, int frames) {
+        checkRange(frame, frames);
+        int done = 0;
+        while (done < frames) {
+            long position = frame + done;
+            int index = (int) (position / CHUNK_FRAMES);
+            int within = (int) (position % CHUNK_FRAMES);
+            int count = Math.min(frames - done, CHUNK_FRAMES - within);
+            Chunk chunk = writableChunk(index);
+            source.get(chunk.data, chunk.offset + within * frameSize, count * frameSize);
+            done += count;
+        }
+    }
+
+    // Encodes like AudioUtils.encodeFrames.
+    public void writeFrames(long frame, float[][] source, int offset, int frames) {
+        checkRange(frame, frames);
+        int done = 0;
+        while (done < frames) {
+            long position = frame + done;
+            int index = (int) (position / CHUNK_FRAMES);
+            int within = (int) (position % CHUNK_FRAMES);
+            int count = Math.min(frames - done, CHUNK_FRAMES - within);
+            Chunk chunk = writableChunk(index);
+            AudioUtils.encodeFrames(source, offset + done, count, chunk.data, format,
+                    chunk.offset / frameSize + within);
+            done += count;
+        }
+    }
+
+    private Chunk writableChunk(int index) {
+        Chunk[] source = chunks();
+        Chunk chunk = source[index];
+        if (chunk != null && !chunk.borrowed && chunk.refs.get() == 1) {
+            return chunk;
+        }
+
+        int chunkFrames = (int) Math.min(CHUNK_FRAMES, numFrames - (long) index * CHUNK_FRAMES);
+        byte[] data;
+        if (chunk == null) {
+            data = new byte[chunkFrames * frameSize];
+            Arrays.fill(data, silentByte());
+        } else {
+            data = Arrays.copyOfRange(chunk.data, chunk.offset, chunk.offset + chunkFrames * frameSize);
+            chunk.refs.decrementAndGet();
+        }
+        Chunk copy = new Chunk(data, 0, false);
+        source[index] = copy;
+        return copy;
+    }
+
+    // 8-bit PCM is unsigned, centred on 128.
+    private byte silentByte() {
+        return format.getSampleSizeInBits() == 8 ? (byte) 0x80 : 0;
+    }
+
+    private Chunk[] chunks() {
+        Chunk[] source = chunks;
+        if (source == null) {
+            throw new IllegalStateException("Sample store has been released");
+        }
+        return source;
+    }
+
+    private void checkRange(long frame, long frames) {
+        if (frame < 0 || frames < 0 || frame + frames > numFrames) {
+            throw new IllegalArgumentException(
+                    "Invalid frame range [" + frame + ", " + (frame + frames) + ") for " + numFrames + " frames");
+        }
+    }
+}
@@ -4,9 +4,6 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.util.ArrayList;
 
 import javax.sound.sampled.AudioFileFormat;
 import javax.sound.sampled.AudioFormat;
@@ -14,8 +11,6 @@ import javax.sound.sampled.AudioInputStream;
 import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.UnsupportedAudioFileException;
 
-import util.AudioUtils;
-
 public class WavFileHandler {
 
     public static AudioLoadResult loadWavFile(File file) throws UnsupportedAudioFileException, IOException {
@@ -25,10 +20,9 @@ public class WavFileHandler {
         
         byte[] rawAudioData = readAllBytes(audioInputStream);
         
-        
-        float[] normalizedSamples = convertToNormalizedSamples(rawAudioData, format);
-        
-        return new AudioLoadResult(rawAudioData, format, normalizedSamples);
+        // The peaks are left for the first caller that wants them, so a caller
+        // that only needs the samples never reads them twice.
+        return new AudioLoadResult(rawAudioData, format);
     }
     
     
@@ -42,6 +36,15 @@ public class WavFileHandler {
         AudioSystem.write(audioStream, AudioFileFormat.Type.WAVE, file);
     }
     
+    public static void saveWavFile(File file, FrameSource audioData) throws IOException {
+        AudioInputStream audioStream = new AudioInputStream(
+                audioData.openStream(),
+                audioData.getFormat(),
+                audioData.getNumFrames());
+        
+        AudioSystem.write(audioStream, AudioFileFormat.Type.WAVE, file);
+    }
+    
     private static byte[] readAllBytes(AudioInputStream audioInputStream) throws IOException {
         ByteArrayOutputStream buffer = new ByteArrayOutputStream();
         int nRead;
@@ -54,78 +57,53 @@ public class WavFileHandler {
         return buffer.toByteArray();
     }
     
-    public static float[] convertToNormalizedSamples(byte[] audioData, AudioFormat format) {
-        int bytesPerSample = format.getSampleSizeInBits() / 8;
-        int numSamples = audioData.length / bytesPerSample;
-        
-        
-        int downsampleFactor = Math.max(1, numSamples / 10000);
-        ArrayList<Float> downsampledList = new ArrayList<>();
-        
-        ByteBuffer bb = ByteBuffer.wrap(audioData);
-        if (format.isBigEndian()) {
-            bb.order(ByteOrder.BIG_ENDIAN);
-        } else {
-            bb.order(ByteOrder.LITTLE_ENDIAN);
-        }
+    public static class AudioLoadResult {
+        private final SampleStore samples;
+        // Null when the loader filled the store directly rather than an array.
+        private final byte[] rawAudioData;
+        // Null until first asked for when the loader didn't compute them; the
+        // block index is then derived from the pyramid, as ProgressiveWavLoader does.
+        private BlockPeakIndex blockPeakIndex;
+        private PeakPyramid peakPyramid;
         
-        for (int i = 0; i < numSamples; i++) {
-            float sample = 0;
-            
-            if (bytesPerSample == 1) {
-                
-                sample = ((audioData[i] & 0xFF) - 128) / 128.0f;
-            } else if (bytesPerSample == 2) {
-                
-                if (i * 2 + 1 < audioData.length) {
-                    short shortSample = bb.getShort(i * 2);
-                    sample = shortSample / 32768.0f;
-                }
-            } else if (bytesPerSample == 3) {
-                
-                if (i * 3 + 2 < audioData.length) {
-                    int intSample = AudioUtils.read24BitSample(audioData, i * 3, format.isBigEndian());
-                    sample = intSample / 8388608.0f;
-                }
-            }
-            
-            
-            if (i % downsampleFactor == 0) {
-                downsampledList.add(sample);
-            }
+        public AudioLoadResult(byte[] rawAudioData, AudioFormat format) {
+            this.samples = SampleStore.wrap(rawAudioData, format);
+            this.rawAudioData = rawAudioData;
         }
         
-        
-        float[] downsampledArray = new float[downsampledList.size()];
-        for (int i = 0; i < downsampledList.size(); i++) {
-            downsampledArray[i] = downsampledList.get(i);
+        public AudioLoadResult(SampleStore samples, BlockPeakIndex blockPeakIndex, PeakPyramid peakPyramid) {
+            this.samples = samples;
+            this.rawAudioData = null;
+            this.blockPeakIndex = blockPeakIndex;
+            this.peakPyramid = peakPyramid;
         }
         
-        return downsampledArray;
-    }
-    
-    
-    public static class AudioLoadResult {
-        private final byte[] rawAudioData;
-        private final AudioFormat format;
-        private final float[] normalizedSamples;
-        
-        public AudioLoadResult(byte[] rawAudioData, AudioFormat format, float[] normalizedSamples) {
-            this.rawAudioData = rawAudioData;
-            this.format = format;
-            this.normalizedSamples = normalizedSamples;
+        public SampleStore getSampleStore() {
+            return samples;
         }
         
+        // The loaded array, or a copy of the store for callers that need one;
+        // audio over 2 GB has no array form and fails here.
         public byte[] getRawAudioData() {
-            return rawAudioData;
+            return rawAudioData != null ? rawAudioData : samples.toByteArray(0, samples.getNumFrames());
         }
         
         public AudioFormat getFormat() {
-            return format;
+            return samples.getFormat();
         }
         
-        public float[] getNormalizedSamples() {
-            return normalizedSamples;
+        public synchronized BlockPeakIndex getBlockPeakIndex() {
+            if (blockPeakIndex == null) {
+                blockPeakIndex = BlockPeakIndex.fromPeakPyramid(getPeakPyramid(), getFormat().getChannels());
+            }
+            return blockPeakIndex;
+        }
+        
+        public synchronized PeakPyramid getPeakPyramid() {
+            if (peakPyramid == null) {
+                peakPyramid = PeakPyramid.fromSource(samples);
+            }
+            return peakPyramid;
         }
     }
 }
\ No newline at end of file
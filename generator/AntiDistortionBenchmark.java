@@ -0,0 +1,258 @@
+package generator;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.sound.sampled.AudioFormat;
+
+import entite.AmplitudeModifier;
+import entite.AntiDistortionProcessor;
+import entite.AntiDistortionStream;
+import entite.BlockPeakIndex;
+import entite.GainEnvelope;
+import util.FastTanh;
+
+
+public class AntiDistortionBenchmark {
+
+    private static final int LOOK_AHEAD_MS = 5;
+    private static final double DURATION = 30.0;
+    private static final int[] SAMPLE_RATES = { 44100, 96000, 192000 };
+
+    public static void main(String[] args) {
+        for (int sampleRate : SAMPLE_RATES) {
+            benchmarkPeakEnvelope(sampleRate);
+        }
+        for (int sampleRate : SAMPLE_RATES) {
+            benchmarkStreaming(sampleRate);
+        }
+        benchmarkTanh();
+        benchmarkApproximations(44100);
+        for (int factor : new int[] { 1, 2, 4 }) {
+            benchmarkOversampling(44100, factor);
+        }
+        for (float gain : new float[] { 0.9991f, 0.9995f, 1.0f, 1.0009f, 0.95f }) {
+            checkBypassAtGain(44100, gain);
+        }
+    }
+
+
+    private static void benchmarkPeakEnvelope(int sampleRate) {
+        int lookAheadSamples = (sampleRate * LOOK_AHEAD_MS) / 1000;
+        float[] samples = generateTestSignal(sampleRate);
+        float[] reference = new float[samples.length];
+        float[] envelope = new float[samples.length];
+
+        long start = System.nanoTime();
+        computeNaivePeakEnvelope(samples, lookAheadSamples, reference);
+        long naiveTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        AntiDistortionProcessor.computePeakEnvelope(samples, samples.length, lookAheadSamples, envelope);
+        long dequeTime = System.nanoTime() - start;
+
+        int mismatches = 0;
+        for (int i = 0; i < samples.length; i++) {
+            if (Float.compare(reference[i], envelope[i]) != 0) {
+                mismatches++;
+            }
+        }
+
+        System.out.printf("%6d Hz  look-ahead %4d  naive %8.1f ms  deque %6.1f ms  speedup %5.1fx  mismatches %d%n",
+                sampleRate, lookAheadSamples,
+                naiveTime / 1e6, dequeTime / 1e6,
+                (double) naiveTime / Math.max(1, dequeTime),
+                mismatches);
+    }
+
+
+    private static void benchmarkStreaming(int sampleRate) {
+        AntiDistortionProcessor processor = new AntiDistortionProcessor();
+        processor.setParameters(0.6f, 4.0f, 1.2f);
+        float[] input = generateTestSignal(sampleRate);
+
+        float[] batch = Arrays.copyOf(input, input.length);
+        long start = System.nanoTime();
+        processor.processChannel(batch, sampleRate);
+        long batchTime = System.nanoTime() - start;
+
+        AntiDistortionStream stream = processor.createStream(new AudioFormat(sampleRate, 16, 1, true, false));
+        int latency = stream.getLatencySamples();
+        float[][] streamed = new float[1][input.length + latency];
+        float[][] source = { input };
+        Random random = new Random(7);
+
+        start = System.nanoTime();
+        int offset = 0;
+        while (offset < input.length) {
+            int blockSize = Math.min(input.length - offset, 1 + random.nextInt(4096));
+            stream.process(source, offset, streamed, offset, blockSize);
+            offset += blockSize;
+        }
+        stream.flush(streamed, offset);
+        long streamTime = System.nanoTime() - start;
+
+        int mismatches = 0;
+        for (int i = 0; i < input.length; i++) {
+            if (Float.compare(batch[i], streamed[0][i + latency]) != 0) {
+                mismatches++;
+            }
+        }
+
+        System.out.printf("%6d Hz  latency %4d  batch %6.1f ms  stream (random blocks) %6.1f ms  mismatches %d%n",
+                sampleRate, latency, batchTime / 1e6, streamTime / 1e6, mismatches);
+    }
+
+
+    private static void benchmarkTanh() {
+        int count = 10_000_000;
+        double padeError = 0;
+        double tableError = 0;
+        for (int i = 0; i < count; i++) {
+            float x = -10.0f + 20.0f * i / count;
+            double exact = Math.tanh(x);
+            padeError = Math.max(padeError, Math.abs(FastTanh.pade(x) - exact));
+            tableError = Math.max(tableError, Math.abs(FastTanh.table(x) - exact));
+        }
+
+        float sink = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            sink += (float) Math.tanh(-3.0f + 6.0f * i / count);
+        }
+        long exactTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            sink += FastTanh.pade(-3.0f + 6.0f * i / count);
+        }
+        long padeTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            sink += FastTanh.table(-3.0f + 6.0f * i / count);
+        }
+        long tableTime = System.nanoTime() - start;
+
+        System.out.printf("tanh  exact %6.1f Msamples/s  pade %6.1f Msamples/s (max err %.2e)  table %6.1f Msamples/s (max err %.2e)  [%s]%n",
+                count * 1e3 / exactTime, count * 1e3 / padeTime, padeError,
+                count * 1e3 / tableTime, tableError, sink != 0 ? "ok" : "-");
+    }
+
+
+    private static void benchmarkApproximations(int sampleRate) {
+        float[] input = generateTestSignal(sampleRate);
+        float[] exact = runProcessor(input, sampleRate, AntiDistortionProcessor.TanhApproximation.EXACT, false, "exact");
+
+        for (AntiDistortionProcessor.TanhApproximation approximation : AntiDistortionProcessor.TanhApproximation.values()) {
+            for (boolean gainTable : new boolean[] { false, true }) {
+                String name = approximation + (gainTable ? " + gain table" : "");
+                float[] output = runProcessor(input, sampleRate, approximation, gainTable, name);
+                double maxError = 0;
+                for (int i = 0; i < output.length; i++) {
+                    maxError = Math.max(maxError, Math.abs(output[i] - exact[i]));
+                }
+                System.out.printf("        %-28s max output error vs exact %.2e%n", name, maxError);
+            }
+        }
+    }
+
+
+    private static void benchmarkOversampling(int sampleRate, int factor) {
+        AntiDistortionProcessor processor = new AntiDistortionProcessor();
+        processor.setParameters(0.6f, 4.0f, 1.2f);
+        processor.setTanhApproximation(AntiDistortionProcessor.TanhApproximation.LOOKUP_TABLE);
+        processor.setOversamplingFactor(factor);
+        float[] samples = generateTestSignal(sampleRate);
+
+        long start = System.nanoTime();
+        processor.processChannel(samples, sampleRate);
+        long time = System.nanoTime() - start;
+
+        System.out.printf("%6d Hz  oversampling %dx  %6.1f ms  (%.0fx real-time)%n",
+                sampleRate, factor, time / 1e6, DURATION * 1e9 / time);
+    }
+
+
+    // The block-peak bypass must not change the output, including at constant
+    // gains close enough to 1 that the amplitude stage leaves samples alone.
+    private static void checkBypassAtGain(int sampleRate, float gain) {
+        AudioFormat format = new AudioFormat(sampleRate, 16, 1, true, false);
+        float[] signal = generateTestSignal(sampleRate);
+        byte[] raw = new byte[signal.length * 2];
+        for (int i = 0; i < signal.length; i++) {
+            // Quiet except for bursts peaking just over the threshold.
+            float level = (i / sampleRate) % 2 == 0 ? 0.3f : 0.7003f;
+            int sample = Math.round(Math.max(-1.0f, Math.min(1.0f, signal[i])) * level * 32767);
+            raw[2 * i] = (byte) sample;
+            raw[2 * i + 1] = (byte) (sample >> 8);
+        }
+
+        GainEnvelope envelope = GainEnvelope.constant(gain);
+        byte[] amplified = AmplitudeModifier.createForFormat(format).modifyAmplitude(raw, envelope);
+        BlockPeakIndex peakIndex = BlockPeakIndex.fromAudioData(raw, format)
+                .scaled(AmplitudeModifier.getAppliedMaxGain(envelope), 1.0f / 32768);
+
+        AntiDistortionProcessor processor = new AntiDistortionProcessor();
+        processor.setParameters(0.7f, 4.0f, 1.0f);
+        byte[] bypassed = processor.processAudio(amplified, format, peakIndex);
+        processor.invalidateEnvelopeCache();
+        byte[] full = processor.processAudio(amplified, format);
+
+        int mismatches = 0;
+        for (int i = 0; i < full.length; i++) {
+            if (bypassed[i] != full[i]) {
+                mismatches++;
+            }
+        }
+
+        System.out.printf("gain %.4f  block-peak bypass vs full path  mismatches %d%n", gain, mismatches);
+    }
+
+
+    private static float[] runProcessor(float[] input, int sampleRate,
+            AntiDistortionProcessor.TanhApproximation approximation, boolean gainTable, String name) {
+        AntiDistortionProcessor processor = new AntiDistortionProcessor();
+        processor.setTanhApproximation(approximation);
+        processor.setUseGainCurveTable(gainTable);
+        processor.setParameters(0.3f, 4.0f, 1.2f);
+
+        float[] output = Arrays.copyOf(input, input.length);
+        long start = System.nanoTime();
+        processor.processChannel(output, sampleRate);
+        long time = System.nanoTime() - start;
+
+        System.out.printf("%6d Hz  %-28s %6.1f ms  (%.0fx real-time)%n",
+                sampleRate, name, time / 1e6, DURATION * 1e9 / time);
+        return output;
+    }
+
+
+    private static void computeNaivePeakEnvelope(float[] samples, int lookAhead, float[] envelope) {
+        for (int i = 0; i < samples.length; i++) {
+            float maxValue = Math.abs(samples[i]);
+            for (int j = 1; j <= lookAhead && i + j < samples.length; j++) {
+                float value = Math.abs(samples[i + j]);
+                if (value > maxValue) {
+                    maxValue = value;
+                }
+            }
+            envelope[i] = maxValue;
+        }
+    }
+
+
+    static float[] generateTestSignal(int sampleRate) {
+        int totalSamples = (int) (sampleRate * DURATION);
+        float[] samples = new float[totalSamples];
+        Random random = new Random(42);
+
+        for (int i = 0; i < totalSamples; i++) {
+            double t = (double) i / sampleRate;
+            double envelope = 0.3 + 0.7 * Math.abs(Math.sin(2 * Math.PI * 0.5 * t));
+            samples[i] = (float) (envelope * Math.sin(2 * Math.PI * 440.0 * t) + 0.05 * random.nextGaussian());
+        }
+
+        return samples;
+    }
+}
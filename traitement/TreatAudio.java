@@ -2,38 +2,85 @@ package traitement;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
 
-import javax.sound.sampled.Clip;
+import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.LineUnavailableException;
-import javax.sound.sampled.UnsupportedAudioFileException;
 import javax.swing.JFileChooser;
 import javax.swing.JOptionPane;
+import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
 import javax.swing.filechooser.FileNameExtensionFilter;
 
 import affichage.AmplitudeModifierGUI;
 import affichage.WaveformCanvas;
+import entite.AmplitudeModifier;
 import entite.AntiDistortionProcessor;
+import entite.AudioPlayer;
 import entite.AudioData;
+import entite.BlockPeakIndex;
+import entite.BufferPool;
+import entite.EditList;
+import entite.FrameSource;
+import entite.FrameRanges;
+import entite.GainEnvelope;
+import entite.LoudnessMeter;
 import entite.NoiseReductionProcessor;
+import entite.PeakAccumulator;
+import entite.PeakCache;
+import entite.PeakPyramid;
+import entite.PlaybackMonitor;
+import entite.ProgressiveWavLoader;
+import entite.RegionRenderer;
+import entite.SampleStore;
 import entite.WavFileHandler;
 import util.AudioUtils;
 
 
 public class TreatAudio implements AudioData.AudioDataListener, WaveformCanvas.SelectionListener {
+    private static final double TRUE_PEAK_CEILING_DBTP = -1.0;
+    private static final int SELECTION_CROSSFADE_MS = 10;
+    // The render stages hold the whole file in one byte[].
+    private static final long MAX_RENDER_BYTES = Integer.MAX_VALUE - 8;
+    
     private final AudioData audioData;
     private AmplitudeModifierGUI gui;
     private File currentFile;
-    private Clip audioClip;
+    private AudioPlayer audioPlayer;
     private AmplitudeModifier amplitudeModifier;
     private AntiDistortionProcessor antiDistortionProcessor;
     private NoiseReductionProcessor noiseReductionProcessor;
-    private int[] currentSelection = null;
+    private long[] currentSelection = null;
+    // The slider's factor and the loudness normalization gain it multiplies.
+    private float amplificationFactor = 1.0f;
+    private float normalizationGain = 1.0f;
+    private byte[] preDistortionAudio = null;
+    private PeakPyramid preDistortionPeaks = null;
+    private PeakPyramid processedPeaks = null;
+    // Last full render and the raw frames changed since; both stages are
+    // patched over those spans instead of re-rendered.
+    private byte[] renderedAudio = null;
+    private PeakPyramid renderedPeaks = null;
+    private final FrameRanges dirtyRanges = new FrameRanges();
+    private FrameSource selectionAudio = null;
+    private PeakPyramid selectionPeaks = null;
+    // Edit lists share their samples, so each undo state costs its pieces only.
+    private final Deque<EditList> undoStack = new ArrayDeque<>();
+    private final Deque<EditList> redoStack = new ArrayDeque<>();
+    private EditList clipboard = null;
+    // Full-length render buffers, recycled when a render is dropped and
+    // emptied when another file is loaded.
+    private final BufferPool renderBuffers = new BufferPool(Runtime.getRuntime().maxMemory() / 4);
     
     public TreatAudio() {
         this.audioData = new AudioData();
         this.audioData.addListener(this);
         this.antiDistortionProcessor = new AntiDistortionProcessor();
         this.noiseReductionProcessor = new NoiseReductionProcessor();
+        this.antiDistortionProcessor.setBufferPool(renderBuffers);
+        this.noiseReductionProcessor.setBufferPool(renderBuffers);
     }
     
     public void initialize() {
@@ -50,50 +97,82 @@ public class TreatAudio implements AudioData.AudioDataListener, WaveformCanvas.S
         
         int result = fileChooser.showOpenDialog(gui);
         if (result == JFileChooser.APPROVE_OPTION) {
-            try {
-                
-                closeAudioResources();
-                
-                currentFile = fileChooser.getSelectedFile();
-                gui.setTitle(currentFile.getName());
-                
-                
-                WavFileHandler.AudioLoadResult loadResult = WavFileHandler.loadWavFile(currentFile);
-                
-                
-                amplitudeModifier = AmplitudeModifier.createForFormat(loadResult.getFormat());
-                
-                
-                noiseReductionProcessor.resetNoiseProfile();
-                
-                
-                audioData.setAudioData(
-                    loadResult.getRawAudioData(), 
-                    loadResult.getFormat(), 
-                    loadResult.getNormalizedSamples()
-                );
-                
-                
-                gui.updateWaveform(loadResult.getNormalizedSamples());
-                
-                
-                gui.setStatusMessage(AudioUtils.getAudioFormatDetails(loadResult.getFormat()));
-                
-                JOptionPane.showMessageDialog(gui, 
-                    AudioUtils.getAudioFormatDetails(loadResult.getFormat()),
-                    "File Loaded", 
-                    JOptionPane.INFORMATION_MESSAGE);
+            closeAudioResources();
+            
+            File file = fileChooser.getSelectedFile();
+            gui.setTitle(file.getName());
+            gui.setControlsEnabled(false);
+            gui.setStatusMessage("Loading " + file.getName() + "...");
+            
+            new SwingWorker<WavFileHandler.AudioLoadResult, Void>() {
+                @Override
+                protected WavFileHandler.AudioLoadResult doInBackground() throws Exception {
+                    return ProgressiveWavLoader.load(file, new ProgressiveWavLoader.Listener() {
+                        @Override
+                        public void onPreview(PeakPyramid peaks) {
+                            SwingUtilities.invokeLater(() -> gui.updateWaveform(peaks));
+                        }
+                        
+                        @Override
+                        public void onPeaksRefined(long fromFrame, long toFrame) {
+                            SwingUtilities.invokeLater(() -> 
+                                gui.getWaveformCanvas().peaksChanged(fromFrame, toFrame));
+                        }
+                    });
+                }
                 
-            } catch (UnsupportedAudioFileException | IOException e) {
-                JOptionPane.showMessageDialog(gui, 
-                    "Error loading file: " + e.getMessage(), 
-                    "Error", 
-                    JOptionPane.ERROR_MESSAGE);
-                e.printStackTrace();
-            }
+                @Override
+                protected void done() {
+                    try {
+                        onFileLoaded(file, get());
+                    } catch (InterruptedException | ExecutionException e) {
+                        Throwable cause = e.getCause() != null ? e.getCause() : e;
+                        gui.setControlsEnabled(audioData.hasAudioData());
+                        gui.setStatusMessage("Error loading file");
+                        JOptionPane.showMessageDialog(gui, 
+                            "Error loading file: " + cause.getMessage(), 
+                            "Error", 
+                            JOptionPane.ERROR_MESSAGE);
+                        cause.printStackTrace();
+                    }
+                }
+            }.execute();
         }
     }
     
+    private void onFileLoaded(File file, WavFileHandler.AudioLoadResult loadResult) {
+        currentFile = file;
+        currentSelection = null;
+        undoStack.clear();
+        redoStack.clear();
+        
+        
+        amplitudeModifier = AmplitudeModifier.createForFormat(loadResult.getFormat());
+        
+        
+        noiseReductionProcessor.resetNoiseProfile();
+        invalidateProcessingCache();
+        renderBuffers.clear();
+        
+        
+        // A normalization gain was measured on the previous file.
+        normalizationGain = 1.0f;
+        audioData.setGainEnvelope(GainEnvelope.constant(amplificationFactor));
+        
+        
+        audioData.setAudioData(
+            loadResult.getSampleStore(), 
+            loadResult.getBlockPeakIndex(),
+            loadResult.getPeakPyramid()
+        );
+        
+        
+        gui.updateWaveform(loadResult.getPeakPyramid());
+        
+        
+        gui.setStatusMessage(AudioUtils.getAudioFormatDetails(loadResult.getFormat()));
+    }
+    
     public void learnNoiseProfile() {
         if (!audioData.hasAudioData()) {
             JOptionPane.showMessageDialog(gui, 
@@ -112,6 +191,7 @@ public class TreatAudio implements AudioData.AudioDataListener, WaveformCanvas.S
             File noiseFile = fileChooser.getSelectedFile();
             
             boolean success = noiseReductionProcessor.learnNoiseProfile(noiseFile);
+            invalidateProcessingCache();
             
             if (success) {
                 JOptionPane.showMessageDialog(gui, 
@@ -151,12 +231,13 @@ public class TreatAudio implements AudioData.AudioDataListener, WaveformCanvas.S
         }
         
         
-        noiseReductionProcessor.learnNoiseProfileFromSection(
-            audioData.getRawAudioData(),
+        noiseReductionProcessor.learnNoiseProfileFromFrames(
+            audioData.getEditList().toByteArray(currentSelection[0], currentSelection[1]),
             audioData.getAudioFormat(),
-            currentSelection[0],
-            currentSelection[1]
+            0,
+            currentSelection[1] - currentSelection[0]
         );
+        invalidateProcessingCache();
         
         JOptionPane.showMessageDialog(gui, 
             "Noise profile learned from the selected portion of the waveform.", 
@@ -171,8 +252,153 @@ public class TreatAudio implements AudioData.AudioDataListener, WaveformCanvas.S
     }
     
     @Override
-    public void onSelectionChanged(int startSample, int endSample) {
-        currentSelection = new int[] { startSample, endSample };
+    public void onSelectionChanged(long startFrame, long endFrame) {
+        currentSelection = new long[] { startFrame, endFrame };
+        
+        if (audioData.isProcessSelectionOnly() && !gui.getWaveformCanvas().isAdjustingSelection()) {
+            invalidateSelectionRender();
+            updateWaveform();
+        }
+    }
+    
+    public void cut() {
+        long[] selection = requireSelection("cut");
+        if (selection == null) {
+            return;
+        }
+        
+        EditList edits = audioData.getEditList();
+        if (selection[1] - selection[0] == edits.getNumFrames()) {
+            JOptionPane.showMessageDialog(gui, 
+                "Cannot cut the whole file.", 
+                "Error", 
+                JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        
+        clipboard = edits.copy(selection[0], selection[1]);
+        applyEdit(edits.cut(selection[0], selection[1]), "Cut " + formatDuration(clipboard.getNumFrames()));
+    }
+    
+    public void copy() {
+        long[] selection = requireSelection("copy");
+        if (selection == null) {
+            return;
+        }
+        
+        clipboard = audioData.getEditList().copy(selection[0], selection[1]);
+        gui.setStatusMessage("Copied " + formatDuration(clipboard.getNumFrames()));
+    }
+    
+    // Replaces the selection, or inserts at the cursor, or at the start.
+    public void paste() {
+        if (!audioData.hasAudioData() || clipboard == null) {
+            return;
+        }
+        
+        if (!clipboard.getFormat().matches(audioData.getAudioFormat())) {
+            JOptionPane.showMessageDialog(gui, 
+                "The copied audio has a different format: " + clipboard.getFormat(), 
+                "Error", 
+                JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        
+        long[] range = currentSelection != null ? currentSelection : new long[] { 0, 0 };
+        EditList edits = audioData.getEditList().cut(range[0], range[1]).paste(range[0], clipboard);
+        applyEdit(edits, "Pasted " + formatDuration(clipboard.getNumFrames()));
+    }
+    
+    public void trimToSelection() {
+        long[] selection = requireSelection("keep");
+        if (selection == null) {
+            return;
+        }
+        
+        applyEdit(audioData.getEditList().copy(selection[0], selection[1]),
+            "Trimmed to " + formatDuration(selection[1] - selection[0]));
+    }
+    
+    // Inserts at the start of the selection, or at the start of the file.
+    public void insertSilence() {
+        if (!audioData.hasAudioData()) {
+            return;
+        }
+        
+        String input = JOptionPane.showInputDialog(gui, "Seconds of silence to insert:", "1.0");
+        if (input == null) {
+            return;
+        }
+        
+        double seconds;
+        try {
+            seconds = Double.parseDouble(input.trim());
+        } catch (NumberFormatException e) {
+            seconds = -1;
+        }
+        if (!(seconds > 0)) {
+            JOptionPane.showMessageDialog(gui, 
+                "Please enter a positive number of seconds.", 
+                "Error", 
+                JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        
+        long frames = Math.round(seconds * audioData.getAudioFormat().getSampleRate());
+        long atFrame = currentSelection != null ? currentSelection[0] : 0;
+        applyEdit(audioData.getEditList().insertSilence(atFrame, frames),
+            "Inserted " + formatDuration(frames) + " of silence");
+    }
+    
+    public void undo() {
+        if (!undoStack.isEmpty()) {
+            redoStack.push(audioData.getEditList());
+            setEditList(undoStack.pop(), "Undo");
+        }
+    }
+    
+    public void redo() {
+        if (!redoStack.isEmpty()) {
+            undoStack.push(audioData.getEditList());
+            setEditList(redoStack.pop(), "Redo");
+        }
+    }
+    
+    private long[] requireSelection(String action) {
+        if (!audioData.hasAudioData()) {
+            return null;
+        }
+        
+        if (currentSelection == null || currentSelection[0] == currentSelection[1]) {
+            JOptionPane.showMessageDialog(gui, 
+                "Please select the portion of the waveform to " + action + ".", 
+                "No Selection", 
+                JOptionPane.INFORMATION_MESSAGE);
+            return null;
+        }
+        return currentSelection;
+    }
+    
+    private void applyEdit(EditList edits, String description) {
+        undoStack.push(audioData.getEditList());
+        redoStack.clear();
+        setEditList(edits, description);
+    }
+    
+    // Every edit moves audio in time, so the cached renders start over.
+    private void setEditList(EditList edits, String description) {
+        stopAudio();
+        audioData.setEditList(edits);
+        currentSelection = null;
+        gui.getWaveformCanvas().clearSelection();
+        invalidateProcessingCache();
+        updateWaveform();
+        gui.setStatusMessage(description + " (" + formatDuration(edits.getNumFrames()) + " total, "
+            + edits.getNumPieces() + " pieces)");
+    }
+    
+    private String formatDuration(long frames) {
+        return String.format("%.2f s", frames / audioData.getAudioFormat().getSampleRate());
     }
     
     public void saveWavFile() {
@@ -202,17 +428,20 @@ public class TreatAudio implements AudioData.AudioDataListener, WaveformCanvas.S
             
             try {
                 
-                byte[] processedAudio = processAudio();
+                FrameSource processedAudio = processAudio();
                 
                 
-                WavFileHandler.saveWavFile(outputFile, processedAudio, audioData.getAudioFormat());
+                WavFileHandler.saveWavFile(outputFile, processedAudio);
+                if (processedPeaks != null) {
+                    PeakCache.store(outputFile, audioData.getAudioFormat(), processedPeaks);
+                }
                 
                 JOptionPane.showMessageDialog(gui, 
                     "File saved successfully!", 
                     "Success", 
                     JOptionPane.INFORMATION_MESSAGE);
                 
-            } catch (IOException e) {
+            } catch (IOException | IllegalStateException e) {
                 JOptionPane.showMessageDialog(gui, 
                     "Error saving file: " + e.getMessage(), 
                     "Error", 
@@ -231,13 +460,14 @@ public class TreatAudio implements AudioData.AudioDataListener, WaveformCanvas.S
             stopAudio();
             
             
-            byte[] processedAudio = processAudio();
+            FrameSource processedAudio = processAudio();
             
             
-            audioClip = AudioUtils.createClip(processedAudio, audioData.getAudioFormat());
-            audioClip.start();
+            PlaybackMonitor monitor = new PlaybackMonitor(audioData.getAudioFormat().getChannels());
+            audioPlayer = AudioPlayer.start(processedAudio, monitor);
+            gui.startPlaybackDisplay(monitor);
             
-        } catch (LineUnavailableException | IOException e) {
+        } catch (LineUnavailableException | IllegalStateException e) {
             JOptionPane.showMessageDialog(gui, 
                 "Error playing audio: " + e.getMessage(), 
                 "Error", 
@@ -247,22 +477,63 @@ public class TreatAudio implements AudioData.AudioDataListener, WaveformCanvas.S
     }
     
     public void stopAudio() {
-        if (audioClip != null && audioClip.isRunning()) {
-            audioClip.stop();
-            audioClip.close();
+        if (audioPlayer != null && audioPlayer.isRunning()) {
+            audioPlayer.stop();
+        }
+        audioPlayer = null;
+        if (gui != null) {
+            gui.stopPlaybackDisplay();
         }
     }
     
     public void setAmplificationFactor(float factor) {
-        audioData.setAmplificationFactor(factor);
+        amplificationFactor = factor;
+        setGainEnvelope(GainEnvelope.constant(factor * normalizationGain));
+    }
+    
+    // Only the frames where the automation actually changed are re-rendered.
+    public void setGainEnvelope(GainEnvelope envelope) {
+        long[] changed = audioData.getGainEnvelope().differingRange(envelope);
+        audioData.setGainEnvelope(envelope);
+        if (changed != null) {
+            invalidateRange(changed[0], changed[1]);
+        }
         
         if (audioData.hasAudioData()) {
             updateWaveform();
         }
     }
     
+    // Loudness scales with a constant gain, so the raw file is measured once and
+    // every target after that is a subtraction.
+    public void normalizeLoudness(double targetLufs) {
+        if (!audioData.hasAudioData()) {
+            return;
+        }
+        
+        LoudnessMeter loudness = audioData.getLoudness();
+        if (loudness == null) {
+            loudness = LoudnessMeter.measure(audioData.getEditList(), true);
+            audioData.setLoudness(loudness);
+        }
+        
+        // The slider keeps its position and scales from the normalized level; a
+        // muted slider stays muted.
+        float gain = loudness.getNormalizationGain(targetLufs, TRUE_PEAK_CEILING_DBTP);
+        normalizationGain = amplificationFactor > 0.0f ? gain / amplificationFactor : gain;
+        setGainEnvelope(GainEnvelope.constant(amplificationFactor * normalizationGain));
+        
+        gui.setStatusMessage(String.format(
+            "Integrated: %.1f LUFS, true peak: %.1f dBTP, gain: %+.1f dB",
+            loudness.getIntegratedLoudness(),
+            loudness.getTruePeakDb(),
+            20.0 * Math.log10(gain)
+        ));
+    }
+    
     public void setAntiDistortionEnabled(boolean enabled) {
         audioData.setAntiDistortionEnabled(enabled);
+        invalidateRender();
         
         if (audioData.hasAudioData()) {
             updateWaveform();
@@ -272,6 +543,7 @@ public class TreatAudio implements AudioData.AudioDataListener, WaveformCanvas.S
     public void setAntiDistortionParameters(float threshold, float ratio, float makeupGain) {
         audioData.setAntiDistortionParameters(threshold, ratio, makeupGain);
         antiDistortionProcessor.setParameters(threshold, ratio, makeupGain);
+        invalidateRender();
         
         if (audioData.hasAudioData()) {
             updateWaveform();
@@ -281,6 +553,25 @@ public class TreatAudio implements AudioData.AudioDataListener, WaveformCanvas.S
     public void setUseTanhSoftClipper(boolean useTanh) {
         audioData.setUseTanhSoftClipper(useTanh);
         antiDistortionProcessor.setUseTanhSoftClipper(useTanh);
+        invalidateRender();
+        
+        if (audioData.hasAudioData()) {
+            updateWaveform();
+        }
+    }
+    
+    public void setOversamplingFactor(int factor) {
+        audioData.setOversamplingFactor(factor);
+        antiDistortionProcessor.setOversamplingFactor(factor);
+        invalidateRender();
+        
+        if (audioData.hasAudioData()) {
+            updateWaveform();
+        }
+    }
+    
+    public void setProcessSelectionOnly(boolean selectionOnly) {
+        audioData.setProcessSelectionOnly(selectionOnly);
         
         if (audioData.hasAudioData()) {
             updateWaveform();
@@ -289,6 +580,7 @@ public class TreatAudio implements AudioData.AudioDataListener, WaveformCanvas.S
     
     public void setNoiseReductionEnabled(boolean enabled) {
         audioData.setNoiseReductionEnabled(enabled);
+        invalidateProcessingCache();
         
         if (audioData.hasAudioData()) {
             updateWaveform();
@@ -298,6 +590,7 @@ public class TreatAudio implements AudioData.AudioDataListener, WaveformCanvas.S
     public void setNoiseReductionParameters(float amount, float floor, float smoothing) {
         audioData.setNoiseReductionParameters(amount, floor, smoothing);
         noiseReductionProcessor.setParameters(amount, floor, smoothing);
+        invalidateProcessingCache();
         
         if (audioData.hasAudioData()) {
             updateWaveform();
@@ -307,6 +600,7 @@ public class TreatAudio implements AudioData.AudioDataListener, WaveformCanvas.S
     public void resetNoiseProfile() {
         if (audioData.hasAudioData()) {
             noiseReductionProcessor.resetNoiseProfile();
+            invalidateProcessingCache();
             updateWaveform();
             JOptionPane.showMessageDialog(gui, 
                 "Noise profile has been reset. The noise profile will be re-estimated on the next processing.", 
@@ -315,33 +609,313 @@ public class TreatAudio implements AudioData.AudioDataListener, WaveformCanvas.S
         }
     }
     
-    private byte[] processAudio() {
+    // Amplitude and noise reduction output is kept until one of their settings
+    // changes, so anti-distortion tweaks reuse the same input array and hit the
+    // processor's envelope cache. The last stage also leaves the display peaks
+    // of its output in processedPeaks. The cached arrays are handed out as
+    // views, so patches to them reach whoever holds the result.
+    private FrameSource processAudio() {
+        if (audioData.isProcessSelectionOnly()) {
+            return processSelection();
+        }
         
-        byte[] processedAudio = audioData.getRawAudioData();
+        // Nothing to render, so audio of any length plays and saves as edited.
+        EditList edits = audioData.getEditList();
+        if (isPassThrough()) {
+            processedPeaks = audioData.getPeakPyramid();
+            return edits;
+        }
         
+        long startTime = System.nanoTime();
+        long allocatedBefore = renderBuffers.getAllocatedBytes();
+        long reusedBefore = renderBuffers.getReusedBytes();
+        AudioFormat format = audioData.getAudioFormat();
+        if (preDistortionAudio != null && !dirtyRanges.isEmpty()) {
+            patchDirtyRanges();
+            if (renderedAudio != null) {
+                reportRender(startTime, allocatedBefore, reusedBefore);
+            }
+        }
+        if (renderedAudio != null) {
+            processedPeaks = renderedPeaks;
+            return SampleStore.wrap(renderedAudio, format);
+        }
         
-        processedAudio = amplitudeModifier.modifyAmplitude(
-            processedAudio, 
-            audioData.getAmplificationFactor()
-        );
+        long numFrames = edits.getNumFrames();
+        if (numFrames * format.getFrameSize() > MAX_RENDER_BYTES) {
+            throw new IllegalStateException(String.format(
+                "Processing is limited to 2 GB of audio and this file has %.1f GB. "
+                + "It can be played, edited and saved unprocessed, or processed a selection at a time.",
+                numFrames * format.getFrameSize() / 1073741824.0));
+        }
         
+        byte[] processedAudio = preDistortionAudio;
         
-        if (audioData.isNoiseReductionEnabled()) {
-            processedAudio = noiseReductionProcessor.processAudio(
-                processedAudio, 
-                audioData.getAudioFormat()
-            );
+        if (processedAudio == null) {
+            // The amplitude stage works in place on the edited timeline.
+            processedAudio = edits.toByteArray(0, numFrames, renderBuffers);
+            amplitudeModifier.modifyAmplitude(processedAudio, processedAudio, audioData.getGainEnvelope());
+            
+            
+            if (audioData.isNoiseReductionEnabled()) {
+                PeakAccumulator noiseReductionPeaks = new PeakAccumulator(numFrames);
+                byte[] amplifiedAudio = processedAudio;
+                processedAudio = noiseReductionProcessor.processAudio(
+                    amplifiedAudio, 
+                    format,
+                    noiseReductionPeaks
+                );
+                renderBuffers.release(amplifiedAudio);
+                preDistortionPeaks = noiseReductionPeaks.toPyramid(processedAudio, format);
+            } else if (audioData.getPeakPyramid() != null) {
+                preDistortionPeaks = audioData.getPeakPyramid().scaled(
+                    audioData.getGainEnvelope(), processedAudio, format);
+            } else {
+                preDistortionPeaks = null;
+            }
+            
+            preDistortionAudio = processedAudio;
         }
         
+        processedPeaks = preDistortionPeaks;
         
         if (audioData.isAntiDistortionEnabled()) {
+            PeakAccumulator antiDistortionPeaks = new PeakAccumulator(numFrames);
             processedAudio = antiDistortionProcessor.processAudio(
                 processedAudio, 
-                audioData.getAudioFormat()
+                format,
+                currentPeakIndex(),
+                antiDistortionPeaks
             );
+            processedPeaks = antiDistortionPeaks.toPyramid(processedAudio, format);
+        }
+        
+        renderedAudio = processedAudio;
+        renderedPeaks = processedPeaks;
+        
+        reportRender(startTime, allocatedBefore, reusedBefore);
+        return SampleStore.wrap(processedAudio, format);
+    }
+    
+    private boolean isPassThrough() {
+        return AmplitudeModifier.isUnity(audioData.getGainEnvelope()) 
+            && !audioData.isNoiseReductionEnabled() 
+            && !audioData.isAntiDistortionEnabled();
+    }
+    
+    // Shows how long a render since startTime took and how much of its buffer
+    // traffic the pool served, given the pool counters taken at startTime.
+    private void reportRender(long startTime, long allocatedBefore, long reusedBefore) {
+        gui.setStatusMessage(String.format(
+            "Rendered in %d ms: %.1f MB allocated, %.1f MB reused",
+            (System.nanoTime() - startTime) / 1000000,
+            (renderBuffers.getAllocatedBytes() - allocatedBefore) / 1048576.0,
+            (renderBuffers.getReusedBytes() - reusedBefore) / 1048576.0
+        ));
+    }
+    
+    // Marks raw frames [fromFrame, toFrame) as changed. The next processAudio
+    // re-renders only around them; a change to most of the file drops the
+    // cached render instead.
+    private void invalidateRange(long fromFrame, long toFrame) {
+        if (!audioData.hasAudioData()) {
+            return;
+        }
+        
+        long numFrames = audioData.getEditList().getNumFrames();
+        long from = Math.max(0, fromFrame);
+        long to = Math.min(numFrames, toFrame);
+        if (from >= to) {
+            return;
+        }
+        
+        invalidateSelectionRender();
+        if (preDistortionAudio == null || to - from > numFrames / 2) {
+            invalidateProcessingCache();
+            return;
+        }
+        dirtyRanges.add(from, to);
+    }
+    
+    // Re-renders each dirty span through the amplitude and noise reduction
+    // stage, widened by that stage's latency, then the widened spans through
+    // anti-distortion, widened again by its look-ahead, and patches both
+    // cached outputs and their peaks in place. The patched arrays are the ones
+    // already handed out, so an open playback buffer hears the change too.
+    private void patchDirtyRanges() {
+        AudioFormat format = audioData.getAudioFormat();
+        int frameSize = format.getFrameSize();
+        EditList rawAudio = audioData.getEditList();
+        long numFrames = rawAudio.getNumFrames();
+        GainEnvelope envelope = audioData.getGainEnvelope();
+        boolean noiseReduction = audioData.isNoiseReductionEnabled();
+        
+        int latencyFrames = noiseReduction ? noiseReductionProcessor.getLatencyFrames(format) : 0;
+        int alignFrames = noiseReduction ? noiseReductionProcessor.getAlignmentFrames() : 1;
+        FrameRanges changed = new FrameRanges();
+        for (long[] range : dirtyRanges.getRanges()) {
+            long from = Math.max(0, range[0] - latencyFrames);
+            long to = Math.min(numFrames, range[1] + latencyFrames);
+            byte[] patch = RegionRenderer.render(rawAudio, from, to, latencyFrames, alignFrames, renderBuffers, 
+                (slice, sliceStart) -> {
+                    amplitudeModifier.modifyAmplitude(slice, slice, envelope.shifted(sliceStart));
+                    return noiseReduction ? noiseReductionProcessor.processAudio(slice, format) : slice;
+                });
+            System.arraycopy(patch, 0, preDistortionAudio, (int) (from * frameSize), patch.length);
+            renderBuffers.release(patch);
+            if (preDistortionPeaks != null) {
+                preDistortionPeaks.update(preDistortionAudio, from, to);
+            }
+            changed.add(from, to);
+        }
+        dirtyRanges.clear();
+        antiDistortionProcessor.invalidateEnvelopeCache();
+        
+        if (renderedAudio != null && renderedAudio != preDistortionAudio) {
+            int lookAheadFrames = antiDistortionProcessor.getLatencyFrames(format);
+            FrameRanges stageChanged = changed;
+            changed = new FrameRanges();
+            for (long[] range : stageChanged.getRanges()) {
+                long from = Math.max(0, range[0] - lookAheadFrames);
+                long to = Math.min(numFrames, range[1] + lookAheadFrames);
+                // The envelope cache is keyed on the input array, which the pool
+                // hands out again for the next range.
+                byte[] patch = RegionRenderer.render(preDistortionAudio, format, from, to, lookAheadFrames, 1, 
+                    renderBuffers, 
+                    (slice, sliceStart) -> {
+                        byte[] processed = antiDistortionProcessor.processAudio(slice, format);
+                        antiDistortionProcessor.invalidateEnvelopeCache();
+                        return processed;
+                    });
+                System.arraycopy(patch, 0, renderedAudio, (int) (from * frameSize), patch.length);
+                renderBuffers.release(patch);
+                if (renderedPeaks != null) {
+                    renderedPeaks.update(renderedAudio, from, to);
+                }
+                changed.add(from, to);
+            }
+            antiDistortionProcessor.invalidateEnvelopeCache();
+        }
+        
+        for (long[] range : changed.getRanges()) {
+            gui.getWaveformCanvas().peaksChanged(range[0], range[1]);
+        }
+    }
+    
+    private void invalidateRender() {
+        if (renderedAudio != preDistortionAudio) {
+            recycleRenderBuffer(renderedAudio);
+        }
+        renderedAudio = null;
+        renderedPeaks = null;
+        invalidateSelectionRender();
+    }
+    
+    private void invalidateSelectionRender() {
+        selectionAudio = null;
+        selectionPeaks = null;
+    }
+    
+    // A playing render may still be read from, so it is left to the collector.
+    private void recycleRenderBuffer(byte[] buffer) {
+        if (audioPlayer == null || !audioPlayer.isRunning()) {
+            renderBuffers.release(buffer);
+        }
+    }
+    
+    // Leaves the audio outside the selection untouched. The chain runs over the
+    // selection plus every enabled stage's latency either side, so the cost
+    // follows the selection rather than the file. The result, crossfaded into
+    // its surroundings at both ends, replaces the selection in a copy of the
+    // edit list, so no sample outside it is copied. With nothing selected the
+    // output is the unprocessed audio.
+    private FrameSource processSelection() {
+        EditList rawAudio = audioData.getEditList();
+        if (currentSelection == null || currentSelection[0] >= currentSelection[1]) {
+            processedPeaks = audioData.getPeakPyramid();
+            return rawAudio;
+        }
+        if (selectionAudio != null) {
+            processedPeaks = selectionPeaks;
+            return selectionAudio;
+        }
+        
+        long startTime = System.nanoTime();
+        long allocatedBefore = renderBuffers.getAllocatedBytes();
+        long reusedBefore = renderBuffers.getReusedBytes();
+        AudioFormat format = audioData.getAudioFormat();
+        long fromFrame = currentSelection[0];
+        long toFrame = currentSelection[1];
+        GainEnvelope envelope = audioData.getGainEnvelope();
+        boolean noiseReduction = audioData.isNoiseReductionEnabled();
+        boolean antiDistortion = audioData.isAntiDistortionEnabled();
+        
+        int latencyFrames = 0;
+        if (noiseReduction) {
+            latencyFrames += noiseReductionProcessor.getLatencyFrames(format);
+            
+            // The profile estimate reads the head of the file, not of the slice.
+            long headFrames = Math.min(rawAudio.getNumFrames(), 
+                noiseReductionProcessor.getProfileEstimateFrames(format));
+            byte[] head = amplitudeModifier.modifyAmplitude(rawAudio.toByteArray(0, headFrames), envelope);
+            noiseReductionProcessor.ensureNoiseProfile(head, format);
+        }
+        if (antiDistortion) {
+            latencyFrames += antiDistortionProcessor.getLatencyFrames(format);
         }
         
-        return processedAudio;
+        int alignFrames = noiseReduction ? noiseReductionProcessor.getAlignmentFrames() : 1;
+        // The region stays in the edit list, so it never goes back to the pool.
+        byte[] region = RegionRenderer.render(rawAudio, fromFrame, toFrame, latencyFrames, alignFrames, 
+            renderBuffers, 
+            (slice, sliceStart) -> {
+                amplitudeModifier.modifyAmplitude(slice, slice, envelope.shifted(sliceStart));
+                byte[] processed = slice;
+                if (noiseReduction) {
+                    processed = noiseReductionProcessor.processAudio(slice, format);
+                }
+                if (antiDistortion) {
+                    byte[] stageInput = processed;
+                    processed = antiDistortionProcessor.processAudio(stageInput, format);
+                    antiDistortionProcessor.invalidateEnvelopeCache();
+                    if (stageInput != slice) {
+                        renderBuffers.release(stageInput);
+                    }
+                }
+                return processed;
+            });
+        
+        int fadeFrames = (int) (format.getSampleRate() * SELECTION_CROSSFADE_MS / 1000);
+        RegionRenderer.crossfade(rawAudio, region, fromFrame, fadeFrames);
+        EditList output = rawAudio.replace(fromFrame, SampleStore.wrap(region, format), 
+            PeakPyramid.fromAudioData(region, format));
+        
+        selectionAudio = output;
+        selectionPeaks = output.getPeakPyramid();
+        processedPeaks = selectionPeaks;
+        reportRender(startTime, allocatedBefore, reusedBefore);
+        return output;
+    }
+    
+    private void invalidateProcessingCache() {
+        invalidateRender();
+        recycleRenderBuffer(preDistortionAudio);
+        preDistortionAudio = null;
+        preDistortionPeaks = null;
+        dirtyRanges.clear();
+        antiDistortionProcessor.invalidateEnvelopeCache();
+    }
+    
+    // The load-time peaks still bound the signal after the amplitude stage, up to
+    // one LSB of rounding; noise reduction reshapes the spectrum, so they don't after it.
+    private BlockPeakIndex currentPeakIndex() {
+        BlockPeakIndex peakIndex = audioData.getBlockPeakIndex();
+        if (peakIndex == null || audioData.isNoiseReductionEnabled()) {
+            return null;
+        }
+        
+        float lsb = 1.0f / (1 << (audioData.getAudioFormat().getSampleSizeInBits() - 1));
+        return peakIndex.scaled(AmplitudeModifier.getAppliedMaxGain(audioData.getGainEnvelope()), lsb);
     }
     
     private void updateWaveform() {
@@ -351,17 +925,20 @@ public class TreatAudio implements AudioData.AudioDataListener, WaveformCanvas.S
         
         try {
             
-            byte[] processedAudio = processAudio();
+            FrameSource processedAudio = processAudio();
             
             
-            float[] modifiedSamples = WavFileHandler.convertToNormalizedSamples(
-                processedAudio, 
-                audioData.getAudioFormat()
-            );
+            PeakPyramid peaks = processedPeaks != null
+                ? processedPeaks
+                : PeakPyramid.fromSource(processedAudio);
             
             
-            gui.updateWaveform(modifiedSamples);
+            gui.updateWaveform(peaks);
             
+        } catch (IllegalStateException e) {
+            // Too long to process: show the audio as edited and say why.
+            gui.updateWaveform(audioData.getPeakPyramid());
+            gui.setStatusMessage(e.getMessage());
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -411,4 +988,8 @@ public class TreatAudio implements AudioData.AudioDataListener, WaveformCanvas.S
     public boolean getUseTanhSoftClipper() {
         return audioData.getUseTanhSoftClipper();
     }
+    
+    public int getOversamplingFactor() {
+        return audioData.getOversamplingFactor();
+    }
 }
\ No newline at end of file
@@ -27,6 +27,64 @@ public class AudioUtils {
         return sample;
     }
     
+    // Decodes `frames` interleaved PCM frames starting at startFrame into
+    // target[channel][offset..], normalized to [-1, 1).
+    public static void decodeFrames(byte[] data, AudioFormat format, long startFrame,
+                                    float[][] target, int offset, int frames) {
+        int bytesPerSample = format.getSampleSizeInBits() / 8;
+        int numChannels = format.getChannels();
+        boolean isBigEndian = format.isBigEndian();
+        int byteIndex = (int) (startFrame * numChannels * bytesPerSample);
+        
+        for (int i = 0; i < frames; i++) {
+            for (int channel = 0; channel < numChannels; channel++) {
+                float value;
+                if (bytesPerSample == 1) {
+                    value = ((data[byteIndex] & 0xFF) - 128) / 128.0f;
+                } else if (bytesPerSample == 2) {
+                    int sample = isBigEndian
+                            ? (data[byteIndex] << 8) | (data[byteIndex + 1] & 0xFF)
+                            : (data[byteIndex + 1] << 8) | (data[byteIndex] & 0xFF);
+                    value = sample / 32768.0f;
+                } else {
+                    value = read24BitSample(data, byteIndex, isBigEndian) / 8388608.0f;
+                }
+                target[channel][offset + i] = value;
+                byteIndex += bytesPerSample;
+            }
+        }
+    }
+    
+    // Inverse of decodeFrames: writes source[channel][offset..offset + frames)
+    // into data from startFrame on, rounded and clamped to the format the way
+    // the processors write their output.
+    public static void encodeFrames(float[][] source, int offset, int frames,
+                                    byte[] data, AudioFormat format, long startFrame) {
+        int bytesPerSample = format.getSampleSizeInBits() / 8;
+        int numChannels = format.getChannels();
+        boolean isBigEndian = format.isBigEndian();
+        float fullScale = 1 << (format.getSampleSizeInBits() - 1);
+        int byteIndex = (int) (startFrame * numChannels * bytesPerSample);
+        
+        for (int i = 0; i < frames; i++) {
+            for (int channel = 0; channel < numChannels; channel++) {
+                int sample = Math.round(source[channel][offset + i] * fullScale);
+                sample = (int) Math.min(fullScale - 1, Math.max(-fullScale, sample));
+                if (bytesPerSample == 1) {
+                    data[byteIndex] = (byte) (sample + 128);
+                } else if (bytesPerSample == 2) {
+                    data[byteIndex + (isBigEndian ? 0 : 1)] = (byte) (sample >> 8);
+                    data[byteIndex + (isBigEndian ? 1 : 0)] = (byte) sample;
+                } else {
+                    data[byteIndex + (isBigEndian ? 0 : 2)] = (byte) (sample >> 16);
+                    data[byteIndex + 1] = (byte) (sample >> 8);
+                    data[byteIndex + (isBigEndian ? 2 : 0)] = (byte) sample;
+                }
+                byteIndex += bytesPerSample;
+            }
+        }
+    }
+    
     
    
     
@@ -0,0 +1,52 @@
+package util;
+
+public class FastTanh {
+
+    private static final float TABLE_RANGE = 8.0f;
+    private static final int TABLE_SIZE = 4096;
+    private static final float TABLE_SCALE = TABLE_SIZE / (2.0f * TABLE_RANGE);
+    private static final float[] TABLE = new float[TABLE_SIZE + 2];
+
+    static {
+        for (int i = 0; i < TABLE.length; i++) {
+            TABLE[i] = (float) Math.tanh(i / TABLE_SCALE - TABLE_RANGE);
+        }
+    }
+
+
+    // [7/6] Pade approximant, clamped where it crosses +-1.
+    // Max abs error vs Math.tanh: MAX_PADE_ERROR over the whole real line.
+    public static final float MAX_PADE_ERROR = 1.0e-4f;
+
+    public static float pade(float x) {
+        if (x > 5.0f) {
+            return 1.0f;
+        }
+        if (x < -5.0f) {
+            return -1.0f;
+        }
+        float x2 = x * x;
+        float numerator = x * (135135.0f + x2 * (17325.0f + x2 * (378.0f + x2)));
+        float denominator = 135135.0f + x2 * (62370.0f + x2 * (3150.0f + x2 * 28.0f));
+        float result = numerator / denominator;
+        return Math.max(-1.0f, Math.min(1.0f, result));
+    }
+
+
+    // Linear interpolation in a 4096-entry table over [-8, 8], saturating outside.
+    // Max abs error vs Math.tanh: MAX_TABLE_ERROR.
+    public static final float MAX_TABLE_ERROR = 2.0e-6f;
+
+    public static float table(float x) {
+        float position = (x + TABLE_RANGE) * TABLE_SCALE;
+        if (position <= 0.0f) {
+            return -1.0f;
+        }
+        if (position >= TABLE_SIZE) {
+            return 1.0f;
+        }
+        int index = (int) position;
+        float fraction = position - index;
+        return TABLE[index] + (TABLE[index + 1] - TABLE[index]) * fraction;
+    }
+}